@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import bench.Fixtures;
+
+/**
+ * The application side of the benchmarks; see bench.Fixtures for why it exists
+ */
+public class ProductFixtures implements Fixtures {
+
+    @Override
+    public Fixtures.Format format(int count, long seed) {
+        return new Format(count, seed);
+    }
+
+    @Override
+    public Fixtures.Append append(Path dir, int batchSize, long seed) throws IOException {
+        return new Append(dir, batchSize, seed);
+    }
+
+    @Override
+    public Fixtures.Search search(Path dir, long size, long seed) throws IOException {
+        return new Search(dir, size, seed);
+    }
+
+    private static class Format implements Fixtures.Format {
+        private final Product[] products;
+        private final String[] formatted;
+        private final byte[] encoded;
+        private final int[] starts;
+        private final StringBuilder text = new StringBuilder(256);
+        private final byte[] line = new byte[256];
+
+        Format(int count, long seed) {
+            ProductGenerator generator = new ProductGenerator(seed);
+            products = new Product[count];
+            formatted = new String[count];
+            starts = new int[count + 1];
+            byte[] bytes = new byte[count * 256];
+            for (int i = 0; i < count; i++) {
+                products[i] = generator.next(i);
+                formatted[i] = products[i].toFormattedString();
+                starts[i + 1] = starts[i] + ProductTextCodec.encode(products[i], bytes, starts[i]);
+            }
+            encoded = bytes;
+        }
+
+        @Override
+        public int size() {
+            return products.length;
+        }
+
+        @Override
+        public String toFormattedString(int index) {
+            return products[index].toFormattedString();
+        }
+
+        @Override
+        public Object fromFormattedString(int index) {
+            return Product.fromFormattedString(formatted[index]);
+        }
+
+        @Override
+        public CharSequence formatWithCodec(int index) {
+            text.setLength(0);
+            return ProductTextCodec.format(products[index], text);
+        }
+
+        @Override
+        public int encodeWithCodec(int index) {
+            return ProductTextCodec.encode(products[index], line, 0);
+        }
+
+        @Override
+        public Object parseWithCodec(int index) {
+            return ProductTextCodec.parse(encoded, starts[index], starts[index + 1] - starts[index]);
+        }
+    }
+
+    private static class Append implements Fixtures.Append {
+        private final Path storePath;
+        private final Path legacyPath;
+        private final ProductStore store;
+        private final RandomAccessFile legacy;
+        private final List<Product> batch;
+        private final Product[] products;
+        private int next;
+
+        Append(Path dir, int batchSize, long seed) throws IOException {
+            storePath = Files.createTempFile(dir, "append", ".dat");
+            legacyPath = Files.createTempFile(dir, "append", ".legacy");
+            Files.delete(storePath);
+            store = ProductStore.openWithoutIndexes(storePath.toString(), true);
+            legacy = new RandomAccessFile(legacyPath.toFile(), "rw");
+            ProductGenerator generator = new ProductGenerator(seed);
+            products = new Product[Math.max(1024, batchSize)];
+            for (int i = 0; i < products.length; i++) {
+                products[i] = generator.next(i);
+            }
+            batch = List.of(products).subList(0, batchSize);
+        }
+
+        @Override
+        public int batchSize() {
+            return batch.size();
+        }
+
+        @Override
+        public void appendLegacy() throws IOException {
+            Product product = nextProduct();
+            legacy.writeUTF(product.getFormattedName());
+            legacy.writeUTF(product.getFormattedDescription());
+            legacy.writeUTF(product.getFormattedID());
+            legacy.writeDouble(product.getCost());
+        }
+
+        @Override
+        public long appendAndSync() throws IOException {
+            long recordNo = store.append(nextProduct());
+            store.sync();
+            return recordNo;
+        }
+
+        @Override
+        public long addAllAndSync() throws IOException {
+            long first = store.addAll(batch);
+            store.sync();
+            return first;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                legacy.close();
+                store.close();
+            } finally {
+                ProductStore.deleteSideFiles(storePath.toString());
+                Files.deleteIfExists(storePath);
+                Files.deleteIfExists(legacyPath);
+            }
+        }
+
+        private Product nextProduct() {
+            next = (next + 1) % products.length;
+            return products[next];
+        }
+    }
+
+    private static class Search implements Fixtures.Search {
+        private final ProductService service;
+        private final ParallelScanner scanner;
+
+        Search(Path dir, long size, long seed) throws IOException {
+            String path = dir.resolve("catalog-" + size + ".dat").toString();
+            ProductGenerator.ensureCatalog(path, size, seed);
+            service = ProductService.open(path, false);
+            // a scanner of our own, so no search reuses the hits of the one before
+            scanner = new ParallelScanner(service.getStore());
+        }
+
+        @Override
+        public long[] search(String term) {
+            return scanner.scanContains(term);
+        }
+
+        @Override
+        public long summarize() throws IOException {
+            return service.summarize(1000, 100).getSumCents();
+        }
+
+        @Override
+        public void close() throws IOException {
+            scanner.shutdown();
+            service.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * What the benchmarks need from the application. JMH only accepts benchmarks in a
+ * named package, and code in a named package cannot refer to the application's
+ * classes in the default package, so ProductFixtures (default package, jmh/)
+ * implements these interfaces and the benchmarks find it by name once per trial.
+ * The calls made while measuring are ordinary interface calls.
+ */
+public interface Fixtures {
+    String IMPLEMENTATION = "ProductFixtures";
+
+    /**
+     * Products in memory, formatted and encoded ahead of time
+     */
+    interface Format {
+        int size();
+
+        String toFormattedString(int index);
+
+        Object fromFormattedString(int index);
+
+        /**
+         * @return the line, in a builder reused between calls
+         */
+        CharSequence formatWithCodec(int index);
+
+        /**
+         * @return bytes written to a buffer reused between calls
+         */
+        int encodeWithCodec(int index);
+
+        Object parseWithCodec(int index);
+    }
+
+    /**
+     * An empty product file, and an empty file in the writeUTF layout RandProductMaker
+     * used before the fixed-width store
+     */
+    interface Append extends Closeable {
+        int batchSize();
+
+        /**
+         * Append one product with writeUTF and writeDouble, without a sync, as the
+         * old RandProductMaker did
+         */
+        void appendLegacy() throws IOException;
+
+        /**
+         * Append one product and force it to disk
+         * @return its record number
+         */
+        long appendAndSync() throws IOException;
+
+        /**
+         * Append batchSize products with one write and one sync
+         * @return the record number of the first
+         */
+        long addAllAndSync() throws IOException;
+    }
+
+    /**
+     * A generated catalog opened read-only, searched without the result cache or
+     * the keystroke refinement
+     */
+    interface Search extends Closeable {
+        /**
+         * Run the substring search behind RandProductSearch on the parallel scanner
+         * @param term lowercased search term
+         * @return record numbers of the hits
+         */
+        long[] search(String term);
+
+        /**
+         * @return sum of every cost in cents, from the parallel roll-up
+         */
+        long summarize() throws IOException;
+    }
+
+    Format format(int count, long seed);
+
+    Append append(Path dir, int batchSize, long seed) throws IOException;
+
+    /**
+     * @param dir directory the catalog is generated in, or reused from
+     */
+    Search search(Path dir, long size, long seed) throws IOException;
+
+    static Fixtures load() {
+        try {
+            return (Fixtures) Class.forName(IMPLEMENTATION).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load " + IMPLEMENTATION, e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Appending products: the writeUTF path of the old RandProductMaker, which never
+ * synced, the store with a sync per product, as a click in RandProductMaker does,
+ * and the store with one sync per batch. Files go to the directory named by the
+ * bench.dir property (default bench) and are deleted after each fork.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProductAppendBenchmark {
+    private static final long SEED = 42;
+    private static final int BATCH = 1_000;
+
+    private Fixtures.Append append;
+
+    @Setup
+    public void setUp() throws IOException {
+        append = Fixtures.load().append(Files.createDirectories(Paths.get(System.getProperty("bench.dir", "bench"))),
+                BATCH, SEED);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        append.close();
+    }
+
+    @Benchmark
+    public void legacyWriteUtf() throws IOException {
+        append.appendLegacy();
+    }
+
+    @Benchmark
+    public void appendAndSync(Blackhole blackhole) throws IOException {
+        blackhole.consume(append.appendAndSync());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void addAllAndSync(Blackhole blackhole) throws IOException {
+        blackhole.consume(append.addAllAndSync());
+    }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Formatting and parsing one product as a text line, with the Product methods and
+ * with ProductTextCodec. Each call takes the next of 10,000 generated products so
+ * the JIT cannot specialise on one value.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProductFormatBenchmark {
+    private static final long SEED = 42;
+
+    private Fixtures.Format format;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        format = Fixtures.load().format(10_000, SEED);
+    }
+
+    @Benchmark
+    public void toFormattedString(Blackhole blackhole) {
+        blackhole.consume(format.toFormattedString(nextIndex()));
+    }
+
+    @Benchmark
+    public void fromFormattedString(Blackhole blackhole) {
+        blackhole.consume(format.fromFormattedString(nextIndex()));
+    }
+
+    @Benchmark
+    public void codecFormat(Blackhole blackhole) {
+        blackhole.consume(format.formatWithCodec(nextIndex()));
+    }
+
+    @Benchmark
+    public void codecEncode(Blackhole blackhole) {
+        blackhole.consume(format.encodeWithCodec(nextIndex()));
+    }
+
+    @Benchmark
+    public void codecParse(Blackhole blackhole) {
+        blackhole.consume(format.parseWithCodec(nextIndex()));
+    }
+
+    private int nextIndex() {
+        next = next + 1 == format.size() ? 0 : next + 1;
+        return next;
+    }
+}
@@ -0,0 +1,72 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Searching and rolling up generated catalogs. Every call runs the whole search:
+ * the scanner has no result cache and no memory of the previous term. Catalogs
+ * are written to the bench.dir directory (default bench) the first time a size is
+ * run and reused afterwards; the 10M catalog takes about 1.3 GB.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProductSearchBenchmark {
+    private static final long SEED = 42;
+
+    @Param({"10000", "1000000", "10000000"})
+    public long size;
+
+    private Fixtures.Search search;
+
+    /**
+     * Search terms, a state of their own so summarize is not run once per term
+     */
+    @State(Scope.Benchmark)
+    public static class Terms {
+        // roughly a sixteenth, a thousandth and none of the generated names
+        @Param({"kettle", "drill 12", "zzz"})
+        public String term;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        search = Fixtures.load().search(Files.createDirectories(Paths.get(System.getProperty("bench.dir", "bench"))),
+                size, SEED);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        search.close();
+    }
+
+    @Benchmark
+    public void search(Terms terms, Blackhole blackhole) {
+        blackhole.consume(search.search(terms.term));
+    }
+
+    @Benchmark
+    public void summarize(Blackhole blackhole) throws IOException {
+        blackhole.consume(search.summarize());
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock that serializes everything that changes a product file or its
+ * shared ID index: appends and index catch-up. Threads of one JVM queue on a
+ * ReentrantLock shared by every store opened on the same path, and the thread
+ * holding it then takes a FileLock on products.lock so other processes (a second
+ * RandProductMaker, a BulkImporter run) wait as well.
+ *
+ * Readers never take it; they only see records once the header count covering
+ * them has been written, which happens last, inside the lock.
+ */
+public class AppendLock implements Closeable {
+    private static final Map<String, ReentrantLock> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+    private final ReentrantLock local;
+    private final FileChannel channel;
+    private FileLock fileLock;
+
+    private AppendLock(ReentrantLock local, FileChannel channel) {
+        this.local = local;
+        this.channel = channel;
+    }
+
+    /**
+     * Open the lock of a product file, creating products.lock if needed. If the
+     * lock file cannot be written (a read-only directory) only threads of this
+     * JVM are serialized.
+     * @param path location of the product file
+     * @param crossProcess false for a private file, such as a rewrite in progress,
+     * that no other process opens
+     * @return the lock, not held
+     */
+    public static AppendLock open(String path, boolean crossProcess) {
+        String key = Paths.get(path).toAbsolutePath().normalize().toString();
+        ReentrantLock local = LOCAL_LOCKS.computeIfAbsent(key, k -> new ReentrantLock());
+        FileChannel channel = null;
+        if (crossProcess) {
+            try {
+                channel = FileChannel.open(Paths.get(ProductStore.sidePath(path, ".lock")),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                channel = null;
+            }
+        }
+        return new AppendLock(local, channel);
+    }
+
+    /**
+     * Block until this thread holds the lock. Reentrant.
+     * @throws IOException if the file lock cannot be taken
+     */
+    public void acquire() throws IOException {
+        local.lock();
+        if (local.getHoldCount() == 1 && channel != null) {
+            try {
+                fileLock = channel.lock();
+            } catch (IOException | RuntimeException e) {
+                local.unlock();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Release one hold of the lock
+     * @throws IOException if the file lock cannot be released
+     */
+    public void release() throws IOException {
+        try {
+            if (local.getHoldCount() == 1 && fileLock != null) {
+                fileLock.release();
+                fileLock = null;
+            }
+        } finally {
+            local.unlock();
+        }
+    }
+
+    /**
+     * @return true if other processes are locked out as well as other threads
+     */
+    public boolean isCrossProcess() {
+        return channel != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Single-writer append queue for many submitting threads. Submitters put products
+ * on a queue and get back a future for the record number; one writer thread takes
+ * whatever has piled up since its last write and appends it with a single
+ * ProductStore.addAll, and optionally a single sync. While one batch is being
+ * written the next one collects, so adding submitters grows the batches instead of
+ * the contention, until the disk's write bandwidth is the limit.
+ *
+ * Writers in other processes are kept apart by the store's AppendLock.
+ */
+public class AppendQueue implements Closeable {
+    private static final Pending STOP = new Pending(null);
+
+    private final ProductStore store;
+    private final int maxBatch;
+    private final boolean syncEachBatch;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    // guarded by this, so no submit can land behind STOP
+    private boolean closed;
+    private volatile long recordsWritten;
+    private volatile long batchesWritten;
+
+    /**
+     * A submitted product and the future completed once it is written
+     */
+    private static class Pending {
+        final Product product;
+        final CompletableFuture<Long> recordNo = new CompletableFuture<>();
+
+        Pending(Product product) {
+            this.product = product;
+        }
+    }
+
+    /**
+     * Start the writer thread
+     * @param store store to append to, opened for writing
+     * @param maxBatch largest number of products written by one addAll
+     * @param syncEachBatch true to force every batch to disk before its futures complete
+     */
+    public AppendQueue(ProductStore store, int maxBatch, boolean syncEachBatch) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + maxBatch);
+        }
+        this.store = store;
+        this.maxBatch = maxBatch;
+        this.syncEachBatch = syncEachBatch;
+        writer = new Thread(this::run, "product-append");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a product for appending
+     * @param product product to append
+     * @return completes with the record number once the product is written (and
+     * synced, if requested), or exceptionally if the write fails
+     * @throws IllegalStateException if the queue has been closed
+     */
+    public synchronized CompletableFuture<Long> submit(Product product) {
+        if (closed) {
+            throw new IllegalStateException("Append queue is closed");
+        }
+        Pending pending = new Pending(product);
+        queue.add(pending);
+        return pending.recordNo;
+    }
+
+    public long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    public long getBatchesWritten() {
+        return batchesWritten;
+    }
+
+    /**
+     * @return average number of products per write so far
+     */
+    public double getAverageBatchSize() {
+        long batches = batchesWritten;
+        return batches == 0 ? 0 : (double) recordsWritten / batches;
+    }
+
+    /**
+     * Write everything already submitted, then stop the writer thread
+     * @throws IOException if interrupted while waiting for the writer
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(STOP);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the append queue");
+        }
+        // the writer fails what it leaves behind, unless it died before reaching STOP
+        failPending();
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        boolean stopping = false;
+        while (!stopping) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            // everything queued before STOP is still written
+            int stop = batch.indexOf(STOP);
+            if (stop >= 0) {
+                stopping = true;
+                batch.subList(stop, batch.size()).clear();
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+            }
+        }
+        failPending();
+    }
+
+    // Completes everything still queued with an error, e.g. after the writer was
+    // interrupted
+    private void failPending() {
+        IOException closedError = new IOException("Append queue is closed");
+        for (Pending pending = queue.poll(); pending != null; pending = queue.poll()) {
+            if (pending != STOP) {
+                pending.recordNo.completeExceptionally(closedError);
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        List<Product> products = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            products.add(pending.product);
+        }
+        try {
+            long first = store.addAll(products);
+            if (syncEachBatch) {
+                store.sync();
+            }
+            recordsWritten += batch.size();
+            batchesWritten++;
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).recordNo.complete(first + i);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Pending pending : batch) {
+                pending.recordNo.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Headless loader that streams a CSV or TSV file into products.dat. Columns are
+ * name, description, ID and cost. The work is split into three stages, each on
+ * its own thread, joined by bounded queues of row batches:
+ *
+ *   parse -> validate -> encode + append
+ *
+ * Only a few batches are ever in flight, so memory use does not depend on the
+ * size of the input. Rows that fail ProductValidator.checkAll are counted and,
+ * if a reject file is given, written there with their line number and reason.
+ *
+ * Usage: java BulkImporter input.csv [products.dat] [--header] [--rejects file]
+ */
+public class BulkImporter {
+    private static final int BATCH_SIZE = 4096;
+    private static final int QUEUE_BATCHES = 8;
+    private static final List<Row> END = new ArrayList<>();
+    private static final List<Product> END_OF_PRODUCTS = new ArrayList<>();
+
+    private final ProductStore store;
+    private final char delimiter;
+    private final boolean skipHeader;
+    private final Writer rejects;
+
+    private final BlockingQueue<List<Row>> parsed = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    private final BlockingQueue<List<Product>> validated = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+
+    private long rowsRead;
+    private long rowsImported;
+    private long rowsRejected;
+
+    /**
+     * One input line split into fields
+     */
+    private static class Row {
+        final long line;
+        final String[] fields;
+
+        Row(long line, String[] fields) {
+            this.line = line;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Counts reported at the end of an import
+     */
+    public static class Result {
+        public final long rowsRead;
+        public final long rowsImported;
+        public final long rowsRejected;
+        public final long elapsedNanos;
+
+        Result(long rowsRead, long rowsImported, long rowsRejected, long elapsedNanos) {
+            this.rowsRead = rowsRead;
+            this.rowsImported = rowsImported;
+            this.rowsRejected = rowsRejected;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double getRowsPerSecond() {
+            return elapsedNanos == 0 ? 0 : rowsRead * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d rows read, %d imported, %d rejected in %.1f s (%.0f rows/s)",
+                    rowsRead, rowsImported, rowsRejected, elapsedNanos / 1e9, getRowsPerSecond());
+        }
+    }
+
+    /**
+     * @param store store to append to, opened for writing
+     * @param delimiter ',' for CSV (with double quote escaping) or '\t' for TSV
+     * @param skipHeader true if the first record holds column names
+     * @param rejects where rejected rows are reported, or null to only count them
+     */
+    public BulkImporter(ProductStore store, char delimiter, boolean skipHeader, Writer rejects) {
+        this.store = store;
+        this.delimiter = delimiter;
+        this.skipHeader = skipHeader;
+        this.rejects = rejects;
+    }
+
+    /**
+     * Run the pipeline until the input is exhausted
+     * @param input text to import
+     * @return counts and throughput for the run
+     * @throws IOException if reading, writing or any stage fails
+     */
+    public Result run(Reader input) throws IOException {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        CompletionService<Void> stages = new ExecutorCompletionService<>(pool);
+        List<Future<Void>> running = new ArrayList<>();
+        try {
+            running.add(stages.submit(() -> {
+                parse(new BufferedReader(input, 1 << 20));
+                return null;
+            }));
+            running.add(stages.submit(() -> {
+                validate();
+                return null;
+            }));
+            running.add(stages.submit(() -> {
+                append();
+                return null;
+            }));
+            awaitAll(stages, running);
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Result(rowsRead, rowsImported, rowsRejected, System.nanoTime() - start);
+    }
+
+    private void parse(BufferedReader reader) throws IOException, InterruptedException {
+        List<Row> batch = new ArrayList<>(BATCH_SIZE);
+        long line = 0;
+        boolean header = skipHeader;
+        String text;
+        while ((text = reader.readLine()) != null) {
+            line++;
+            // a quoted CSV field may hold line breaks, so keep reading until it closes
+            while (delimiter == ',' && hasOpenQuote(text)) {
+                String next = reader.readLine();
+                if (next == null) {
+                    break;
+                }
+                text = text + "\n" + next;
+                line++;
+            }
+            // the header is the first record, which may itself span several lines
+            if (header) {
+                header = false;
+                continue;
+            }
+            if (text.isEmpty()) {
+                continue;
+            }
+            batch.add(new Row(line, split(text)));
+            if (batch.size() == BATCH_SIZE) {
+                parsed.put(batch);
+                batch = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            parsed.put(batch);
+        }
+        parsed.put(END);
+    }
+
+    private void validate() throws IOException, InterruptedException {
+        long read = 0;
+        long rejected = 0;
+        for (List<Row> batch = parsed.take(); batch != END; batch = parsed.take()) {
+            List<Product> products = new ArrayList<>(batch.size());
+            for (Row row : batch) {
+                read++;
+                String problem = row.fields.length != 4
+                        ? "Expected 4 columns but found " + row.fields.length
+                        : ProductValidator.checkAll(row.fields[0], row.fields[1], row.fields[2], row.fields[3]);
+                if (problem == null) {
+                    products.add(new Product(row.fields[0], row.fields[1], row.fields[2],
+                            Double.parseDouble(row.fields[3])));
+                } else {
+                    rejected++;
+                    if (rejects != null) {
+                        rejects.write("line " + row.line + ": " + problem + System.lineSeparator());
+                    }
+                }
+            }
+            validated.put(products);
+        }
+        validated.put(END_OF_PRODUCTS);
+        rowsRead = read;
+        rowsRejected = rejected;
+    }
+
+    private void append() throws IOException, InterruptedException {
+        long imported = 0;
+        try (GroupCommitWriter writer = new GroupCommitWriter(store, BATCH_SIZE,
+                GroupCommitWriter.SyncPolicy.INTERVAL, 1000)) {
+            for (List<Product> batch = validated.take(); batch != END_OF_PRODUCTS; batch = validated.take()) {
+                writer.addAll(batch);
+                imported += batch.size();
+            }
+        }
+        store.sync();
+        rowsImported = imported;
+    }
+
+    // Waits for the stages in the order they finish; the first failure cancels the
+    // others so none of them stays blocked on a queue that will never drain.
+    private static void awaitAll(CompletionService<Void> stages, List<Future<Void>> running)
+            throws IOException {
+        for (int i = 0; i < running.size(); i++) {
+            try {
+                stages.take().get();
+            } catch (ExecutionException e) {
+                for (Future<Void> stage : running) {
+                    stage.cancel(true);
+                }
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Import failed: " + cause, cause);
+            } catch (InterruptedException e) {
+                for (Future<Void> stage : running) {
+                    stage.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Import interrupted");
+            }
+        }
+    }
+
+    private boolean hasOpenQuote(String text) {
+        int quotes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '"') {
+                quotes++;
+            }
+        }
+        return quotes % 2 != 0;
+    }
+
+    // Splits one record; CSV fields may be wrapped in double quotes with "" as an
+    // escaped quote. Fields are trimmed the same way the form trims its inputs.
+    private String[] split(String text) {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (delimiter == ',' && c == '"') {
+                if (quoted && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == delimiter && !quoted) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields.toArray(new String[0]);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java BulkImporter input.csv|input.tsv [products.dat] [--header] [--rejects file]");
+            System.exit(2);
+        }
+        String input = args[0];
+        String target = "products.dat";
+        boolean header = false;
+        String rejectsPath = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--header")) {
+                header = true;
+            } else if (args[i].equals("--rejects") && i + 1 < args.length) {
+                rejectsPath = args[++i];
+            } else {
+                target = args[i];
+            }
+        }
+        char delimiter = input.toLowerCase().endsWith(".tsv") ? '\t' : ',';
+
+        try {
+            if (LegacyProductMigrator.isLegacy(target)) {
+                LegacyProductMigrator.migrate(target);
+            }
+            try (ProductStore store = ProductStore.open(target, true, ProductStore.StorageMode.configured());
+                 Reader reader = new InputStreamReader(Files.newInputStream(Paths.get(input)),
+                         StandardCharsets.UTF_8);
+                 Writer rejects = rejectsPath == null ? null
+                         : Files.newBufferedWriter(Paths.get(rejectsPath), StandardCharsets.UTF_8)) {
+                Result result = new BulkImporter(store, delimiter, header, rejects).run(reader);
+                System.out.println(result);
+            }
+        } catch (IOException e) {
+            System.err.println("Import failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,641 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * Read-only compressed snapshot of a product file (products.pz), for catalogs too
+ * big to keep in the page cache as fixed-width rows. Padding is trimmed, words
+ * that repeat across the catalog are replaced by dictionary codes, and the cost
+ * is stored as a variable-length number of cents. Records are packed into blocks
+ * of BLOCK_RECORDS, each with its own CRC32C, and a block index holds the offset
+ * of every block, so reading record n decodes only block n / BLOCK_RECORDS.
+ *
+ * A scan decodes each block straight into a reusable buffer of row slots in the
+ * ProductRecord layout, so the existing slot matchers (RecordMatcher, compiled
+ * ProductQuery) run on it unchanged and no Strings are built. Record numbers and
+ * tombstones are those of the source file, so hits can be read from either.
+ *
+ * The snapshot does not follow later writes; getSourceGeneration tells whether it
+ * still matches the store it was written from.
+ *
+ * File: header (64), blocks, dictionary, block index. Text fields are encoded as
+ * a length byte and a byte stream in which 0x00-0x7F are literal ASCII, 0x80-0xFC
+ * are one-byte codes, 0xFD x and 0xFE x y are longer codes and 0xFF x is a literal
+ * non-ASCII byte.
+ *
+ * Usage: java CompressedProductFile products.dat [products.pz]
+ *        java CompressedProductFile --search term products.pz
+ */
+public class CompressedProductFile implements Closeable {
+    private static final int MAGIC = 0x5052445A; // "PRDZ"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    public static final int BLOCK_RECORDS = 256;
+
+    private static final int VERSION_POSITION = 4;
+    private static final int BLOCK_RECORDS_POSITION = 6;
+    private static final int RECORD_COUNT_POSITION = 8;
+    private static final int GENERATION_POSITION = 16;
+    private static final int DICTIONARY_POSITION = 24;
+    private static final int INDEX_POSITION = 32;
+
+    private static final int ONE_BYTE_CODES = 0xFD - 0x80;
+    private static final int TWO_BYTE_CODES = 256;
+    private static final int MAX_THREE_BYTE_CODES = 16_384;
+    private static final int TWO_BYTE = 0xFD;
+    private static final int THREE_BYTE = 0xFE;
+    private static final int LITERAL = 0xFF;
+    // records sampled to choose the dictionary, spread evenly over the file
+    private static final int SAMPLE_RECORDS = 200_000;
+    // blocks decoded by one task of a parallel scan
+    private static final int SCAN_TASK_BLOCKS = 64;
+
+    private final FileChannel channel;
+    private final long recordCount;
+    private final long sourceGeneration;
+    private final byte[][] dictionary;
+    private final long[] blockOffsets;
+    private final MappedByteBuffer[] segments;
+    private final long[] segmentStarts;
+    private final int[] blockSegments;
+
+    private CompressedProductFile(FileChannel channel, long recordCount, long sourceGeneration,
+                                  byte[][] dictionary, long[] blockOffsets) throws IOException {
+        this.channel = channel;
+        this.recordCount = recordCount;
+        this.sourceGeneration = sourceGeneration;
+        this.dictionary = dictionary;
+        this.blockOffsets = blockOffsets;
+        // segments start on a block boundary so no block is split between two mappings
+        int blocks = blockOffsets.length - 1;
+        blockSegments = new int[blocks];
+        List<MappedByteBuffer> mapped = new ArrayList<>();
+        List<Long> starts = new ArrayList<>();
+        int first = 0;
+        while (first < blocks) {
+            int last = first;
+            while (last + 1 < blocks && blockOffsets[last + 2] - blockOffsets[first] <= Integer.MAX_VALUE) {
+                last++;
+            }
+            for (int block = first; block <= last; block++) {
+                blockSegments[block] = mapped.size();
+            }
+            starts.add(blockOffsets[first]);
+            mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, blockOffsets[first],
+                    blockOffsets[last + 1] - blockOffsets[first]));
+            first = last + 1;
+        }
+        segments = mapped.toArray(new MappedByteBuffer[0]);
+        segmentStarts = starts.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Open a compressed snapshot
+     * @param path location of the snapshot
+     * @return the open snapshot
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static CompressedProductFile open(String path) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC || header.getShort(VERSION_POSITION) != VERSION
+                    || header.getShort(BLOCK_RECORDS_POSITION) != BLOCK_RECORDS) {
+                throw new IOException("Not a compressed product file: " + path);
+            }
+            long records = header.getLong(RECORD_COUNT_POSITION);
+            long dictionaryAt = header.getLong(DICTIONARY_POSITION);
+            long indexAt = header.getLong(INDEX_POSITION);
+            int blocks = (int) ((records + BLOCK_RECORDS - 1) / BLOCK_RECORDS);
+            if (indexAt + (blocks + 1L) * Long.BYTES != channel.size() || dictionaryAt > indexAt) {
+                throw new IOException("Compressed product file is truncated: " + path);
+            }
+
+            ByteBuffer dictionaryBytes = ByteBuffer.allocate((int) (indexAt - dictionaryAt));
+            readFully(channel, dictionaryBytes, dictionaryAt);
+            byte[][] dictionary = new byte[dictionaryBytes.getInt(0)][];
+            int position = Integer.BYTES;
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = new byte[dictionaryBytes.get(position++) & 0xFF];
+                dictionaryBytes.get(position, dictionary[i]);
+                position += dictionary[i].length;
+            }
+
+            ByteBuffer index = ByteBuffer.allocate((blocks + 1) * Long.BYTES);
+            readFully(channel, index, indexAt);
+            long[] blockOffsets = new long[blocks + 1];
+            index.flip().asLongBuffer().get(blockOffsets);
+            return new CompressedProductFile(channel, records, header.getLong(GENERATION_POSITION),
+                    dictionary, blockOffsets);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write a compressed snapshot of every record in a store. The dictionary is
+     * chosen from a sample of the records, then the records are encoded block by
+     * block, so memory use does not grow with the catalog.
+     * @param store store to copy
+     * @param path location of the snapshot; replaced atomically when complete
+     * @return number of bytes written
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static long write(ProductStore store, String path) throws IOException {
+        store.refresh();
+        long records = store.getRecordCount();
+        long generation = store.getGeneration();
+        Map<String, Integer> codes = chooseDictionary(store, records);
+        byte[][] dictionary = new byte[codes.size()][];
+        codes.forEach((token, code) -> dictionary[code] = token.getBytes(StandardCharsets.ISO_8859_1));
+
+        Path target = Paths.get(path);
+        Path temp = Paths.get(path + ".tmp");
+        int blocks = (int) ((records + BLOCK_RECORDS - 1) / BLOCK_RECORDS);
+        long[] blockOffsets = new long[blocks + 1];
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            BlockWriter writer = new BlockWriter(out, codes);
+            for (int block = 0; block < blocks; block++) {
+                blockOffsets[block] = writer.position();
+                long from = (long) block * BLOCK_RECORDS;
+                writer.writeBlock(store, from, Math.min(records, from + BLOCK_RECORDS));
+            }
+            blockOffsets[blocks] = writer.position();
+
+            long dictionaryAt = writer.position();
+            ByteBuffer entries = ByteBuffer.allocate(Integer.BYTES
+                    + Arrays.stream(dictionary).mapToInt(entry -> entry.length + 1).sum());
+            entries.putInt(dictionary.length);
+            for (byte[] entry : dictionary) {
+                entries.put((byte) entry.length).put(entry);
+            }
+            writer.write(entries.flip());
+
+            long indexAt = writer.position();
+            ByteBuffer index = ByteBuffer.allocate(blockOffsets.length * Long.BYTES);
+            index.asLongBuffer().put(blockOffsets);
+            writer.write(index);
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(0, MAGIC);
+            header.putShort(VERSION_POSITION, VERSION);
+            header.putShort(BLOCK_RECORDS_POSITION, (short) BLOCK_RECORDS);
+            header.putLong(RECORD_COUNT_POSITION, records);
+            header.putLong(GENERATION_POSITION, generation);
+            header.putLong(DICTIONARY_POSITION, dictionaryAt);
+            header.putLong(INDEX_POSITION, indexAt);
+            while (header.hasRemaining()) {
+                out.write(header, header.position());
+            }
+            out.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return Files.size(target);
+    }
+
+    /**
+     * @return number of records, live and deleted, in the snapshot
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the generation of the source store when the snapshot was written;
+     * if the store's generation has moved on, the snapshot is out of date
+     */
+    public long getSourceGeneration() {
+        return sourceGeneration;
+    }
+
+    /**
+     * @return number of entries in the dictionary
+     */
+    public int getDictionarySize() {
+        return dictionary.length;
+    }
+
+    /**
+     * Read one record, decoding only its block
+     * @param recordNo zero based record number
+     * @return the product, deleted or not
+     * @throws IndexOutOfBoundsException if there is no such record
+     */
+    public Product read(long recordNo) {
+        if (recordNo < 0 || recordNo >= recordCount) {
+            throw new IndexOutOfBoundsException("Record " + recordNo + " of " + recordCount);
+        }
+        Decoder decoder = new Decoder();
+        decoder.decode((int) (recordNo / BLOCK_RECORDS));
+        return ProductRecord.decode(decoder.slotBuffer, slotOffset(recordNo),
+                new byte[Product.DESCRIPTION_LENGTH]);
+    }
+
+    /**
+     * @param recordNo zero based record number
+     * @return true if the record was a tombstone in the source file
+     */
+    public boolean isDeleted(long recordNo) {
+        Decoder decoder = new Decoder();
+        decoder.decode((int) (recordNo / BLOCK_RECORDS));
+        return ProductRecord.isDeleted(decoder.slotBuffer, slotOffset(recordNo));
+    }
+
+    /**
+     * Visit the live records of a range as row slots decoded block by block
+     * @param from first record number, inclusive
+     * @param to last record number, exclusive
+     * @param visitor called with a buffer and offset in the ProductRecord layout;
+     * the buffer is reused, so it is only valid during the call
+     */
+    public void forEachSlotInRange(long from, long to, ProductStore.SlotVisitor visitor) {
+        to = Math.min(to, recordCount);
+        if (from >= to) {
+            return;
+        }
+        Decoder decoder = new Decoder();
+        for (int block = (int) (from / BLOCK_RECORDS); (long) block * BLOCK_RECORDS < to; block++) {
+            decoder.decode(block);
+            long first = Math.max(from, (long) block * BLOCK_RECORDS);
+            long last = Math.min(to, (long) (block + 1) * BLOCK_RECORDS);
+            for (long recordNo = first; recordNo < last; recordNo++) {
+                int offset = slotOffset(recordNo);
+                if (!ProductRecord.isDeleted(decoder.slotBuffer, offset)) {
+                    visitor.visit(recordNo, decoder.slotBuffer, offset);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the live records accepted by a slot matcher, decoding blocks on all cores
+     * @param matcher test applied to each decoded slot, e.g. a RecordMatcher or ProductQuery
+     * @return ascending record numbers of the hits
+     */
+    public long[] scan(ParallelScanner.SlotMatcher matcher) {
+        int blocks = blockOffsets.length - 1;
+        int tasks = (blocks + SCAN_TASK_BLOCKS - 1) / SCAN_TASK_BLOCKS;
+        long[][] parts = IntStream.range(0, tasks).parallel().mapToObj(task -> {
+            long from = (long) task * SCAN_TASK_BLOCKS * BLOCK_RECORDS;
+            long[] hits = new long[64];
+            int[] count = {0};
+            byte[] scratch = RecordMatcher.newScratch();
+            long[][] holder = {hits};
+            forEachSlotInRange(from, from + (long) SCAN_TASK_BLOCKS * BLOCK_RECORDS, (recordNo, buffer, offset) -> {
+                if (matcher.matches(buffer, offset, scratch)) {
+                    if (count[0] == holder[0].length) {
+                        holder[0] = Arrays.copyOf(holder[0], count[0] * 2);
+                    }
+                    holder[0][count[0]++] = recordNo;
+                }
+            });
+            return Arrays.copyOf(holder[0], count[0]);
+        }).toArray(long[][]::new);
+        long[] hits = new long[Arrays.stream(parts).mapToInt(part -> part.length).sum()];
+        int position = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, hits, position, part.length);
+            position += part.length;
+        }
+        return hits;
+    }
+
+    /**
+     * Find the live records whose name, description or ID contains a term, ignoring case
+     * @param term search term
+     * @return ascending record numbers of the hits
+     */
+    public long[] scanContains(String term) {
+        String lower = QueryCache.normalize(term);
+        RecordMatcher matcher = RecordMatcher.forTerm(lower);
+        if (matcher != null) {
+            return scan(matcher);
+        }
+        // non-ASCII terms are matched on the decoded record, as ParallelScanner does
+        byte[] text = new byte[Product.DESCRIPTION_LENGTH];
+        return scan((buffer, offset, scratch) -> {
+            Product product = ProductRecord.decode(buffer, offset, text);
+            return product.getName().toLowerCase().contains(lower)
+                    || product.getDescription().toLowerCase().contains(lower)
+                    || product.getID().toLowerCase().contains(lower);
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int slotOffset(long recordNo) {
+        return (int) (recordNo % BLOCK_RECORDS) * ProductRecord.RECORD_SIZE;
+    }
+
+    // Counts the words of a sample of records and gives the shortest codes to the
+    // words that save the most bytes
+    private static Map<String, Integer> chooseDictionary(ProductStore store, long records) {
+        Map<String, int[]> counts = new HashMap<>();
+        long stride = Math.max(1, records / SAMPLE_RECORDS);
+        ProductStore.SlotVisitor count = (recordNo, buffer, offset) -> {
+            for (int[] field : TEXT_FIELDS) {
+                byte[] bytes = new byte[field[1]];
+                buffer.get(offset + field[0], bytes);
+                int length = trimmedLength(bytes);
+                for (int start = 0; start < length; ) {
+                    int end = tokenEnd(bytes, start, length);
+                    if (end - start > 1) {
+                        counts.computeIfAbsent(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1),
+                                token -> new int[1])[0]++;
+                    }
+                    start = Math.max(end, start + 1);
+                }
+            }
+        };
+        for (long recordNo = 0; recordNo < records; recordNo += stride) {
+            store.visitSlot(recordNo, count);
+        }
+
+        List<Map.Entry<String, int[]>> candidates = new ArrayList<>(counts.entrySet());
+        candidates.removeIf(entry -> entry.getValue()[0] < 2);
+        candidates.sort((a, b) -> Long.compare((long) b.getValue()[0] * b.getKey().length(),
+                (long) a.getValue()[0] * a.getKey().length()));
+        Map<String, Integer> codes = new HashMap<>();
+        for (Map.Entry<String, int[]> candidate : candidates) {
+            int size = codes.size();
+            int codeLength = size < ONE_BYTE_CODES ? 1 : size < ONE_BYTE_CODES + TWO_BYTE_CODES ? 2 : 3;
+            if (codeLength == 3 && size >= ONE_BYTE_CODES + TWO_BYTE_CODES + MAX_THREE_BYTE_CODES) {
+                break;
+            }
+            // worth it only if the uses save more than the entry itself costs
+            long saved = (long) candidate.getValue()[0] * stride * (candidate.getKey().length() - codeLength);
+            if (candidate.getKey().length() <= 255 && saved > candidate.getKey().length() + 1) {
+                codes.put(candidate.getKey(), size);
+            }
+        }
+        return codes;
+    }
+
+    private static final int[][] TEXT_FIELDS = {
+            {ProductRecord.NAME_OFFSET, Product.NAME_LENGTH},
+            {ProductRecord.DESCRIPTION_OFFSET, Product.DESCRIPTION_LENGTH},
+            {ProductRecord.ID_OFFSET, Product.ID_LENGTH}
+    };
+
+    private static int trimmedLength(byte[] bytes) {
+        int length = bytes.length;
+        while (length > 0 && bytes[length - 1] == ' ') {
+            length--;
+        }
+        return length;
+    }
+
+    // Words are runs of anything but spaces
+    private static int tokenEnd(byte[] bytes, int start, int length) {
+        int end = start;
+        while (end < length && bytes[end] != ' ') {
+            end++;
+        }
+        return end;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Compressed product file is truncated");
+            }
+        }
+    }
+
+    private static void zigzag(ByteBuffer out, long value) {
+        long bits = (value << 1) ^ (value >> 63);
+        while ((bits & ~0x7FL) != 0) {
+            out.put((byte) ((bits & 0x7F) | 0x80));
+            bits >>>= 7;
+        }
+        out.put((byte) bits);
+    }
+
+    /**
+     * Encodes blocks into a buffer that is written out whenever it fills up
+     */
+    private static class BlockWriter {
+        private final FileChannel out;
+        private final Map<String, Integer> codes;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_RECORDS * ProductRecord.RECORD_SIZE * 3);
+        private final byte[] field = new byte[Product.DESCRIPTION_LENGTH];
+        private final CRC32C crc = new CRC32C();
+        private long written = HEADER_SIZE;
+
+        BlockWriter(FileChannel out, Map<String, Integer> codes) {
+            this.out = out;
+            this.codes = codes;
+        }
+
+        long position() {
+            return written + buffer.position();
+        }
+
+        void writeBlock(ProductStore store, long from, long to) throws IOException {
+            block.clear();
+            store.forEachSlotInRange(from, to, (recordNo, slots, offset) -> {
+                block.put((byte) slots.getInt(offset + ProductRecord.FLAGS_OFFSET));
+                for (int[] text : TEXT_FIELDS) {
+                    slots.get(offset + text[0], field, 0, text[1]);
+                    encodeField(text[1]);
+                }
+                zigzag(block, slots.getLong(offset + ProductRecord.COST_OFFSET));
+            });
+            crc.reset();
+            crc.update(block.array(), 0, block.position());
+            block.putInt((int) crc.getValue());
+            write(block.flip());
+        }
+
+        private void encodeField(int width) {
+            int lengthAt = block.position();
+            block.put((byte) 0);
+            int length = 0;
+            for (int i = 0; i < width; i++) {
+                if (field[i] != ' ') {
+                    length = i + 1;
+                }
+            }
+            for (int start = 0; start < length; ) {
+                int end = tokenEnd(field, start, length);
+                Integer code = end - start > 1
+                        ? codes.get(new String(field, start, end - start, StandardCharsets.ISO_8859_1)) : null;
+                if (code != null) {
+                    putCode(code);
+                } else {
+                    for (int i = start; i < end; i++) {
+                        if (field[i] < 0) {
+                            block.put((byte) LITERAL);
+                        }
+                        block.put(field[i]);
+                    }
+                }
+                if (end < length) {
+                    block.put((byte) ' ');
+                }
+                start = end + 1;
+            }
+            block.put(lengthAt, (byte) (block.position() - lengthAt - 1));
+        }
+
+        private void putCode(int code) {
+            if (code < ONE_BYTE_CODES) {
+                block.put((byte) (0x80 + code));
+            } else if (code < ONE_BYTE_CODES + TWO_BYTE_CODES) {
+                block.put((byte) TWO_BYTE).put((byte) (code - ONE_BYTE_CODES));
+            } else {
+                int index = code - ONE_BYTE_CODES - TWO_BYTE_CODES;
+                block.put((byte) THREE_BYTE).put((byte) (index >>> 8)).put((byte) index);
+            }
+        }
+
+        void write(ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(bytes.remaining(), buffer.remaining());
+                buffer.put(buffer.position(), bytes, bytes.position(), length);
+                buffer.position(buffer.position() + length);
+                bytes.position(bytes.position() + length);
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                written += out.write(buffer, written);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Decodes one block at a time into row slots; one per thread
+     */
+    private class Decoder {
+        final byte[] slots = new byte[BLOCK_RECORDS * ProductRecord.RECORD_SIZE];
+        final ByteBuffer slotBuffer = ByteBuffer.wrap(slots);
+        private byte[] encoded = new byte[BLOCK_RECORDS * ProductRecord.RECORD_SIZE];
+        private final CRC32C crc = new CRC32C();
+
+        void decode(int block) {
+            int length = (int) (blockOffsets[block + 1] - blockOffsets[block]);
+            if (encoded.length < length) {
+                encoded = new byte[length];
+            }
+            int segment = blockSegments[block];
+            segments[segment].get((int) (blockOffsets[block] - segmentStarts[segment]), encoded, 0, length);
+            crc.reset();
+            crc.update(encoded, 0, length - Integer.BYTES);
+            if ((int) crc.getValue() != ByteBuffer.wrap(encoded).getInt(length - Integer.BYTES)) {
+                throw new IllegalStateException("Compressed block " + block + " is corrupt");
+            }
+            long records = Math.min(BLOCK_RECORDS, recordCount - (long) block * BLOCK_RECORDS);
+            int in = 0;
+            for (int record = 0; record < records; record++) {
+                int slot = record * ProductRecord.RECORD_SIZE;
+                int flags = encoded[in++];
+                for (int[] text : TEXT_FIELDS) {
+                    in = decodeField(in, slot + text[0], text[1]);
+                }
+                long bits = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = encoded[in++];
+                    bits |= (long) (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                }
+                slotBuffer.putLong(slot + ProductRecord.COST_OFFSET, (bits >>> 1) ^ -(bits & 1));
+                slotBuffer.putInt(slot + ProductRecord.FLAGS_OFFSET, flags);
+            }
+        }
+
+        private int decodeField(int in, int out, int width) {
+            int end = in + 1 + (encoded[in] & 0xFF);
+            int position = out;
+            for (in++; in < end; ) {
+                int c = encoded[in++] & 0xFF;
+                if (c < 0x80) {
+                    slots[position++] = (byte) c;
+                } else if (c == LITERAL) {
+                    slots[position++] = encoded[in++];
+                } else {
+                    byte[] entry;
+                    if (c < TWO_BYTE) {
+                        entry = dictionary[c - 0x80];
+                    } else if (c == TWO_BYTE) {
+                        entry = dictionary[ONE_BYTE_CODES + (encoded[in++] & 0xFF)];
+                    } else {
+                        int index = (encoded[in] & 0xFF) << 8 | (encoded[in + 1] & 0xFF);
+                        in += 2;
+                        entry = dictionary[ONE_BYTE_CODES + TWO_BYTE_CODES + index];
+                    }
+                    System.arraycopy(entry, 0, slots, position, entry.length);
+                    position += entry.length;
+                }
+            }
+            Arrays.fill(slots, position, out + width, (byte) ' ');
+            return end;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || (args[0].equals("--search") && args.length < 3)) {
+            System.err.println("Usage: java CompressedProductFile products.dat [products.pz]");
+            System.err.println("       java CompressedProductFile --search term products.pz");
+            System.exit(2);
+        }
+        try {
+            if (args[0].equals("--search")) {
+                try (CompressedProductFile file = open(args[2])) {
+                    long start = System.nanoTime();
+                    long[] hits = file.scanContains(args[1]);
+                    System.out.printf("%,d of %,d records match \"%s\" (%.1f ms)%n", hits.length,
+                            file.getRecordCount(), args[1], (System.nanoTime() - start) / 1e6);
+                    for (int i = 0; i < Math.min(20, hits.length); i++) {
+                        System.out.println(file.read(hits[i]).toFormattedString());
+                    }
+                }
+                return;
+            }
+            String target = args.length > 1 ? args[1] : ProductStore.sidePath(args[0], ".pz");
+            try (ProductStore store = ProductStore.openWithoutIndexes(args[0], false)) {
+                long start = System.nanoTime();
+                long size = write(store, target);
+                long rowBytes = ProductRecord.HEADER_SIZE + store.getRecordCount() * ProductRecord.RECORD_SIZE;
+                System.out.printf("Wrote %,d records to %s: %,d bytes, %.1f%% of %,d (%.1f s)%n",
+                        store.getRecordCount(), target, size, 100.0 * size / rowBytes, rowBytes,
+                        (System.nanoTime() - start) / 1e9);
+            }
+        } catch (IOException e) {
+            System.err.println("Compression failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
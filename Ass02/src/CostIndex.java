@@ -0,0 +1,411 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Secondary index (products.cost.idx) of every record ordered by cost. Entries are
+ * kept in two parallel primitive arrays, costs in cents and record numbers, sorted
+ * by cost and then by record number, so a price range or the cheapest products are
+ * found with a binary search instead of a scan of products.dat.
+ *
+ * Appends go into a small run, in arrival order, that is sorted once when it is
+ * next read and merged into the main arrays once it grows past a fraction of them,
+ * so adding a record never shifts the whole index or the run. A cost changed in
+ * place adds the new entry to the same run and a tombstone for the old one to a
+ * run of removals, which the merge drops. Queries look at all three runs and
+ * merge their answers. Deleted records keep their entries until compaction;
+ * ProductStore filters them out of the answers.
+ */
+public class CostIndex implements Closeable {
+    private static final int MAGIC = 0x50435354; // "PCST"
+    private static final int VERSION = 3;
+    private static final int MIN_DELTA = 1024;
+
+    private final Path path;
+    private long[] costs = new long[0];
+    private int[] recordNos = new int[0];
+    private int size;
+    private long[] deltaCosts = new long[64];
+    private int[] deltaRecordNos = new int[64];
+    private int deltaSize;
+    // the run is appended to unsorted and sorted on the next read or merge
+    private boolean deltaSorted = true;
+    // tombstones of entries whose cost was changed in place, in either run
+    private long[] removedCosts = new long[64];
+    private int[] removedRecordNos = new int[64];
+    private int removedSize;
+    private boolean removedSorted = true;
+    private long coveredRecords;
+    private long coveredRewrites;
+    private boolean dirty;
+
+    private CostIndex(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Load the index for a store, rebuilding it if it is missing or unreadable
+     * @param path location of the index file
+     * @param store store the index describes
+     * @return an index covering every record currently in the store
+     */
+    public static CostIndex open(String path, ProductStore store) {
+        CostIndex index = new CostIndex(Paths.get(path));
+        if (!index.load()) {
+            index.costs = new long[0];
+            index.recordNos = new int[0];
+            index.size = 0;
+            index.coveredRecords = 0;
+            index.coveredRewrites = store.getRewriteCount();
+            index.dirty = true;
+        }
+        index.catchUp(store);
+        return index;
+    }
+
+    /**
+     * Add records appended to the store since the index was last updated. The new
+     * costs are read without decoding the records, sorted as one run and merged in.
+     * If records were rewritten by someone else in the meantime the index is rebuilt.
+     * @param store store the index describes
+     */
+    public synchronized void catchUp(ProductStore store) {
+        long records = store.getRecordCount();
+        if (coveredRecords > records || coveredRewrites != store.getRewriteCount()) {
+            size = 0;
+            deltaSize = 0;
+            removedSize = 0;
+            coveredRecords = 0;
+            coveredRewrites = store.getRewriteCount();
+            dirty = true;
+        }
+        if (coveredRecords == records) {
+            return;
+        }
+        if (records > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Cost index is limited to " + Integer.MAX_VALUE + " records");
+        }
+        mergeDelta();
+        int count = (int) (records - coveredRecords);
+        long[] newCosts = new long[count];
+        int[] newRecordNos = new int[count];
+        store.readCostCents(coveredRecords, newCosts, 0, count);
+        for (int i = 0; i < count; i++) {
+            newRecordNos[i] = (int) (coveredRecords + i);
+        }
+        sort(newCosts, newRecordNos, count);
+        long[] mergedCosts = new long[size + count];
+        int[] mergedRecordNos = new int[size + count];
+        merge(costs, recordNos, 0, size, newCosts, newRecordNos, 0, count,
+                mergedCosts, mergedRecordNos, 0);
+        costs = mergedCosts;
+        recordNos = mergedRecordNos;
+        size += count;
+        coveredRecords = records;
+        dirty = true;
+    }
+
+    /**
+     * Index a newly appended record. Records must be added in ascending order.
+     * @param recordNo record number of the product
+     * @param cost cost of the product in cents
+     */
+    public synchronized void add(long recordNo, long cost) {
+        if (recordNo < coveredRecords) {
+            return;
+        }
+        if (recordNo > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Cost index is limited to " + Integer.MAX_VALUE + " records");
+        }
+        addToDelta(cost, (int) recordNo);
+        coveredRecords = recordNo + 1;
+        dirty = true;
+        mergeIfLarge();
+    }
+
+    /**
+     * Follow an update or delete made in place. The index is left alone, and so
+     * rebuilt by the next catchUp, unless it was current up to the previous rewrite.
+     * @param recordNo record that was rewritten
+     * @param oldCost cost in cents stored before the change
+     * @param newCost cost in cents stored after it; equal to oldCost for a delete
+     * @param rewriteCount the store's rewrite count after the change
+     */
+    public synchronized void rewrite(long recordNo, long oldCost, long newCost, long rewriteCount) {
+        if (coveredRewrites != rewriteCount - 1 || recordNo >= coveredRecords) {
+            return;
+        }
+        coveredRewrites = rewriteCount;
+        dirty = true;
+        if (oldCost == newCost) {
+            return;
+        }
+        if (removedSize == removedCosts.length) {
+            removedCosts = Arrays.copyOf(removedCosts, removedSize * 2);
+            removedRecordNos = Arrays.copyOf(removedRecordNos, removedSize * 2);
+        }
+        removedCosts[removedSize] = oldCost;
+        removedRecordNos[removedSize] = (int) recordNo;
+        removedSize++;
+        removedSorted = false;
+        addToDelta(newCost, (int) recordNo);
+        mergeIfLarge();
+    }
+
+    /**
+     * Find the records whose cost lies in a range
+     * @param min lowest cost in cents, inclusive
+     * @param max highest cost in cents, inclusive
+     * @return record numbers ordered by cost, then by record number
+     */
+    public synchronized long[] range(long min, long max) {
+        sortDelta();
+        int from = lowerBound(costs, 0, size, min);
+        int to = upperBound(costs, 0, size, max);
+        int deltaFrom = lowerBound(deltaCosts, 0, deltaSize, min);
+        int deltaTo = upperBound(deltaCosts, 0, deltaSize, max);
+        return mergeRecordNos(from, Math.max(from, to), deltaFrom, Math.max(deltaFrom, deltaTo),
+                lowerBound(removedCosts, 0, removedSize, min), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Count the records whose cost lies in a range, without building the list
+     * @param min lowest cost in cents, inclusive
+     * @param max highest cost in cents, inclusive
+     * @return number of records in the range
+     */
+    public synchronized long count(long min, long max) {
+        sortDelta();
+        return Math.max(0, upperBound(costs, 0, size, max) - lowerBound(costs, 0, size, min))
+                + Math.max(0, upperBound(deltaCosts, 0, deltaSize, max) - lowerBound(deltaCosts, 0, deltaSize, min))
+                - Math.max(0, upperBound(removedCosts, 0, removedSize, max)
+                        - lowerBound(removedCosts, 0, removedSize, min));
+    }
+
+    /**
+     * Find the cheapest records
+     * @param limit largest number of records to return
+     * @return up to limit record numbers ordered by cost, then by record number
+     */
+    public synchronized long[] cheapest(int limit) {
+        sortDelta();
+        return mergeRecordNos(0, size, 0, deltaSize, 0, limit);
+    }
+
+    public synchronized long getCoveredRecords() {
+        return coveredRecords;
+    }
+
+    public synchronized long getCoveredRewrites() {
+        return coveredRewrites;
+    }
+
+    /**
+     * Write the index to disk if it changed since it was loaded
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        mergeDelta();
+        Path temp = Paths.get(path + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(coveredRecords);
+            out.writeLong(coveredRewrites);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(costs[i]);
+                out.writeInt(recordNos[i]);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private boolean load() {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            coveredRecords = in.readLong();
+            coveredRewrites = in.readLong();
+            size = in.readInt();
+            costs = new long[size];
+            recordNos = new int[size];
+            for (int i = 0; i < size; i++) {
+                costs[i] = in.readLong();
+                recordNos[i] = in.readInt();
+            }
+            return size == coveredRecords;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void addToDelta(long cost, int recordNo) {
+        if (deltaSize == deltaCosts.length) {
+            deltaCosts = Arrays.copyOf(deltaCosts, deltaSize * 2);
+            deltaRecordNos = Arrays.copyOf(deltaRecordNos, deltaSize * 2);
+        }
+        deltaCosts[deltaSize] = cost;
+        deltaRecordNos[deltaSize] = recordNo;
+        deltaSize++;
+        deltaSorted = false;
+    }
+
+    private void mergeIfLarge() {
+        if (deltaSize + removedSize > Math.max(MIN_DELTA, size / 32)) {
+            mergeDelta();
+        }
+    }
+
+    // Folds the append run into the main arrays and drops the entries with tombstones
+    private void mergeDelta() {
+        if (deltaSize == 0 && removedSize == 0) {
+            return;
+        }
+        sortDelta();
+        long[] mergedCosts = new long[size + deltaSize];
+        int[] mergedRecordNos = new int[size + deltaSize];
+        merge(costs, recordNos, 0, size, deltaCosts, deltaRecordNos, 0, deltaSize,
+                mergedCosts, mergedRecordNos, 0);
+        int kept = 0;
+        int removed = 0;
+        for (int i = 0; i < size + deltaSize; i++) {
+            while (removed < removedSize && before(removedCosts[removed], removedRecordNos[removed],
+                    mergedCosts[i], mergedRecordNos[i])) {
+                removed++;
+            }
+            if (removed < removedSize && removedCosts[removed] == mergedCosts[i]
+                    && removedRecordNos[removed] == mergedRecordNos[i]) {
+                removed++;
+                continue;
+            }
+            mergedCosts[kept] = mergedCosts[i];
+            mergedRecordNos[kept++] = mergedRecordNos[i];
+        }
+        costs = mergedCosts;
+        recordNos = mergedRecordNos;
+        size = kept;
+        deltaSize = 0;
+        removedSize = 0;
+    }
+
+    // Sorts the append run and the tombstones by cost, then record number
+    private void sortDelta() {
+        if (!deltaSorted) {
+            sort(deltaCosts, deltaRecordNos, deltaSize);
+            deltaSorted = true;
+        }
+        if (!removedSorted) {
+            sort(removedCosts, removedRecordNos, removedSize);
+            removedSorted = true;
+        }
+    }
+
+    // Merges main[from, to) and delta[deltaFrom, deltaTo) into one list of at most
+    // limit entries, skipping those matched by a tombstone from removedFrom on
+    private long[] mergeRecordNos(int from, int to, int deltaFrom, int deltaTo, int removedFrom, int limit) {
+        long[] result = new long[(int) Math.min(limit, Math.max(0L, (long) (to - from) + (deltaTo - deltaFrom)))];
+        int removed = removedFrom;
+        int count = 0;
+        while (count < result.length && (from < to || deltaFrom < deltaTo)) {
+            long cost;
+            int recordNo;
+            if (deltaFrom >= deltaTo || (from < to && before(costs[from], recordNos[from],
+                    deltaCosts[deltaFrom], deltaRecordNos[deltaFrom]))) {
+                cost = costs[from];
+                recordNo = recordNos[from++];
+            } else {
+                cost = deltaCosts[deltaFrom];
+                recordNo = deltaRecordNos[deltaFrom++];
+            }
+            while (removed < removedSize && before(removedCosts[removed], removedRecordNos[removed], cost, recordNo)) {
+                removed++;
+            }
+            if (removed < removedSize && removedCosts[removed] == cost && removedRecordNos[removed] == recordNo) {
+                removed++;
+                continue;
+            }
+            result[count++] = recordNo;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    private static boolean before(long cost, int recordNo, long otherCost, int otherRecordNo) {
+        return cost < otherCost || (cost == otherCost && recordNo < otherRecordNo);
+    }
+
+    private static void merge(long[] leftCosts, int[] leftRecordNos, int left, int leftEnd,
+                              long[] rightCosts, int[] rightRecordNos, int right, int rightEnd,
+                              long[] outCosts, int[] outRecordNos, int out) {
+        while (left < leftEnd || right < rightEnd) {
+            if (right >= rightEnd || (left < leftEnd && !before(rightCosts[right], rightRecordNos[right],
+                    leftCosts[left], leftRecordNos[left]))) {
+                outCosts[out] = leftCosts[left];
+                outRecordNos[out++] = leftRecordNos[left++];
+            } else {
+                outCosts[out] = rightCosts[right];
+                outRecordNos[out++] = rightRecordNos[right++];
+            }
+        }
+    }
+
+    // Bottom-up merge sort of the first count entries by cost, then record number
+    private static void sort(long[] costs, int[] recordNos, int count) {
+        long[] costBuffer = new long[count];
+        int[] recordBuffer = new int[count];
+        for (int width = 1; width < count; width *= 2) {
+            for (int from = 0; from < count; from += 2 * width) {
+                int middle = Math.min(count, from + width);
+                int to = Math.min(count, from + 2 * width);
+                merge(costs, recordNos, from, middle, costs, recordNos, middle, to,
+                        costBuffer, recordBuffer, from);
+            }
+            System.arraycopy(costBuffer, 0, costs, 0, count);
+            System.arraycopy(recordBuffer, 0, recordNos, 0, count);
+        }
+    }
+
+    // First position in values[from, to) whose value is not below key
+    private static int lowerBound(long[] values, int from, int to, long key) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (values[middle] < key) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    // First position in values[from, to) whose value is above key
+    private static int upperBound(long[] values, int from, int to, long key) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (values[middle] <= key) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+}
@@ -0,0 +1,194 @@
+import java.util.Arrays;
+
+/**
+ * Count, sum, minimum, maximum, average and an optional histogram of costs in
+ * cents. Costs are added from a packed long array, from a run of records read
+ * straight out of the store's cost column (or row slots), or from the record
+ * numbers of a search result, so a roll-up over the whole catalog never builds a
+ * Product or boxes a cost. Summaries of separate parts combine into one, which is
+ * how ProductService spreads a whole-catalog roll-up across cores.
+ *
+ * The histogram has bucketCount buckets of bucketWidthCents each, starting at zero.
+ * Costs below zero count in the first bucket and costs past the last bucket in the
+ * last one. A summary is not thread-safe; give each thread its own and combine them.
+ */
+public class CostSummary {
+    // records read from the store per bulk cost read
+    private static final int CHUNK_RECORDS = 8192;
+
+    private final long bucketWidthCents;
+    private final long[] buckets;
+    private long count;
+    private long sumCents;
+    private long minCents = Long.MAX_VALUE;
+    private long maxCents = Long.MIN_VALUE;
+
+    /**
+     * A summary without a histogram
+     */
+    public CostSummary() {
+        this(1, 0);
+    }
+
+    /**
+     * @param bucketWidthCents width of each histogram bucket in cents
+     * @param bucketCount number of buckets, or 0 for no histogram
+     */
+    public CostSummary(long bucketWidthCents, int bucketCount) {
+        if (bucketWidthCents < 1 || bucketCount < 0) {
+            throw new IllegalArgumentException("Invalid histogram of " + bucketCount
+                    + " buckets of " + bucketWidthCents + " cents");
+        }
+        this.bucketWidthCents = bucketWidthCents;
+        this.buckets = new long[bucketCount];
+    }
+
+    /**
+     * Add one cost
+     * @param cents cost in cents
+     * @throws ArithmeticException if the sum no longer fits in a long
+     */
+    public void add(long cents) {
+        count++;
+        sumCents = Math.addExact(sumCents, cents);
+        minCents = Math.min(minCents, cents);
+        maxCents = Math.max(maxCents, cents);
+        if (buckets.length > 0) {
+            long bucket = Math.max(0, cents / bucketWidthCents);
+            buckets[(int) Math.min(buckets.length - 1, bucket)]++;
+        }
+    }
+
+    /**
+     * Add a run of packed costs
+     * @param cents costs in cents
+     * @param from first index, inclusive
+     * @param to last index, exclusive
+     * @return this summary
+     * @throws ArithmeticException if the sum no longer fits in a long
+     */
+    public CostSummary addAll(long[] cents, int from, int to) {
+        for (int i = from; i < to; i++) {
+            add(cents[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Add the costs of the live records in a range, read in bulk without decoding
+     * the records
+     * @param store store to read
+     * @param from first record number, inclusive
+     * @param to last record number, exclusive
+     * @return this summary
+     * @throws ArithmeticException if the sum no longer fits in a long
+     */
+    public CostSummary addRange(ProductStore store, long from, long to) {
+        long[] chunk = new long[(int) Math.min(CHUNK_RECORDS, Math.max(0, to - from))];
+        boolean anyDeleted = store.getDeletedCount() > 0;
+        for (long start = from; start < to; start += chunk.length) {
+            int length = (int) Math.min(chunk.length, to - start);
+            store.readCostCents(start, chunk, 0, length);
+            if (!anyDeleted) {
+                addAll(chunk, 0, length);
+                continue;
+            }
+            for (int i = 0; i < length; i++) {
+                if (!store.isDeleted(start + i)) {
+                    add(chunk[i]);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Add the costs of a set of records, such as the hits of a search. Deleted
+     * records are skipped.
+     * @param store store holding the records
+     * @param recordNos record numbers
+     * @return this summary
+     * @throws ArithmeticException if the sum no longer fits in a long
+     */
+    public CostSummary addRecords(ProductStore store, int[] recordNos) {
+        for (int recordNo : recordNos) {
+            if (!store.isDeleted(recordNo)) {
+                add(store.readCostCents(recordNo));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Fold another summary with the same histogram into this one
+     * @param other summary of other costs
+     * @return this summary
+     * @throws IllegalArgumentException if the histograms differ
+     */
+    public CostSummary combine(CostSummary other) {
+        if (other.bucketWidthCents != bucketWidthCents || other.buckets.length != buckets.length) {
+            throw new IllegalArgumentException("Cannot combine summaries with different histograms");
+        }
+        count += other.count;
+        sumCents = Math.addExact(sumCents, other.sumCents);
+        minCents = Math.min(minCents, other.minCents);
+        maxCents = Math.max(maxCents, other.maxCents);
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] += other.buckets[i];
+        }
+        return this;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSumCents() {
+        return sumCents;
+    }
+
+    /**
+     * @return the lowest cost in cents, or 0 if nothing was added
+     */
+    public long getMinCents() {
+        return count == 0 ? 0 : minCents;
+    }
+
+    /**
+     * @return the highest cost in cents, or 0 if nothing was added
+     */
+    public long getMaxCents() {
+        return count == 0 ? 0 : maxCents;
+    }
+
+    /**
+     * @return the average cost in cents, or 0 if nothing was added
+     */
+    public double getAverageCents() {
+        return count == 0 ? 0 : (double) sumCents / count;
+    }
+
+    public long getBucketWidthCents() {
+        return bucketWidthCents;
+    }
+
+    /**
+     * @return the number of costs in each histogram bucket
+     */
+    public long[] getBuckets() {
+        return Arrays.copyOf(buckets, buckets.length);
+    }
+
+    /**
+     * @return count, sum, min, max and average in dollars
+     */
+    @Override
+    public String toString() {
+        return String.format("%,d products, sum %s, min %s, max %s, avg %.2f",
+                count, dollars(sumCents), dollars(getMinCents()), dollars(getMaxCents()), getAverageCents() / 100);
+    }
+
+    private static String dollars(long cents) {
+        return ProductTextCodec.formatCents(cents, new StringBuilder()).toString();
+    }
+}
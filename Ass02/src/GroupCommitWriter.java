@@ -0,0 +1,165 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers products and appends them to a ProductStore in batches, so a bulk load
+ * costs one write call per batch instead of one per record. How often the data is
+ * forced to disk is controlled by a SyncPolicy:
+ * EVERY_BATCH fsyncs after every batch, INTERVAL fsyncs at most once per interval
+ * (and on a timer so an idle writer doesn't sit on unsynced data), NEVER leaves it
+ * to the operating system.
+ */
+public class GroupCommitWriter implements Closeable {
+
+    public enum SyncPolicy { EVERY_BATCH, INTERVAL, NEVER }
+
+    private final ProductStore store;
+    private final int batchSize;
+    private final SyncPolicy policy;
+    private final long intervalMillis;
+    private final List<Product> pending = new ArrayList<>();
+    private final ScheduledExecutorService syncTimer;
+
+    private boolean unsynced;
+    private long lastSyncNanos = System.nanoTime();
+    private long recordsWritten;
+    private long batchesWritten;
+    private long syncs;
+    private long writeNanos;
+
+    /**
+     * Create a writer that syncs after every batch
+     * @param store store to append to
+     * @param batchSize number of products buffered before they are written
+     */
+    public GroupCommitWriter(ProductStore store, int batchSize) {
+        this(store, batchSize, SyncPolicy.EVERY_BATCH, 0);
+    }
+
+    /**
+     * Create a writer with an explicit sync policy
+     * @param store store to append to
+     * @param batchSize number of products buffered before they are written
+     * @param policy when to force written batches to disk
+     * @param intervalMillis minimum time between syncs for SyncPolicy.INTERVAL
+     */
+    public GroupCommitWriter(ProductStore store, int batchSize, SyncPolicy policy, long intervalMillis) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        if (policy == SyncPolicy.INTERVAL && intervalMillis <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive: " + intervalMillis);
+        }
+        this.store = store;
+        this.batchSize = batchSize;
+        this.policy = policy;
+        this.intervalMillis = intervalMillis;
+        if (policy == SyncPolicy.INTERVAL) {
+            syncTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "product-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncTimer.scheduleWithFixedDelay(this::syncIfDue, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            syncTimer = null;
+        }
+    }
+
+    /**
+     * Queue a product, writing the batch once it is full
+     * @param product product to append
+     * @throws IOException if a batch write fails
+     */
+    public synchronized void add(Product product) throws IOException {
+        pending.add(product);
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Queue several products, writing every batch that fills up
+     * @param products products to append, in order
+     * @throws IOException if a batch write fails
+     */
+    public synchronized void addAll(List<Product> products) throws IOException {
+        for (Product product : products) {
+            add(product);
+        }
+    }
+
+    /**
+     * Write whatever is buffered, then sync if the policy asks for it
+     * @throws IOException if the write or sync fails
+     */
+    public synchronized void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        store.addAll(pending);
+        recordsWritten += pending.size();
+        batchesWritten++;
+        pending.clear();
+        unsynced = true;
+        if (policy == SyncPolicy.EVERY_BATCH
+                || (policy == SyncPolicy.INTERVAL && start - lastSyncNanos >= intervalMillis * 1_000_000L)) {
+            sync();
+        }
+        writeNanos += System.nanoTime() - start;
+    }
+
+    public synchronized long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    /**
+     * @return records written per second of time spent writing and syncing
+     */
+    public synchronized double getRecordsPerSecond() {
+        return writeNanos == 0 ? 0 : recordsWritten * 1_000_000_000.0 / writeNanos;
+    }
+
+    /**
+     * @return a one line summary of the work done so far
+     */
+    public synchronized String report() {
+        return String.format("%d records in %d batches, %d syncs, %.0f records/s",
+                recordsWritten, batchesWritten, syncs, getRecordsPerSecond());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (syncTimer != null) {
+            syncTimer.shutdownNow();
+        }
+        flush();
+        if (policy != SyncPolicy.NEVER && unsynced) {
+            sync();
+        }
+    }
+
+    private synchronized void syncIfDue() {
+        if (unsynced && System.nanoTime() - lastSyncNanos >= intervalMillis * 1_000_000L) {
+            try {
+                sync();
+            } catch (IOException e) {
+                // the next batch retries the sync and reports the failure to its caller
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        store.sync();
+        syncs++;
+        unsynced = false;
+        lastSyncNanos = System.nanoTime();
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples and reports percentiles over them.
+ * Used by RandProductSearch to expose keystroke-to-result times.
+ */
+public class LatencyStats {
+    private final long[] samples;
+    private int next;
+    private int count;
+    private long total;
+
+    /**
+     * @param window number of most recent samples the percentiles are computed over
+     */
+    public LatencyStats(int window) {
+        samples = new long[window];
+    }
+
+    /**
+     * Record one latency
+     * @param nanos elapsed time in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        total++;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds at that percentile of the window, 0 if empty
+     */
+    public synchronized double percentileMillis(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, rank))] / 1e6;
+    }
+
+    public synchronized long getTotalSamples() {
+        return total;
+    }
+
+    /**
+     * @return p50, p99 and max over the window
+     */
+    @Override
+    public synchronized String toString() {
+        return String.format("p50 %.1f ms, p99 %.1f ms, max %.1f ms over %d queries",
+                percentileMillis(50), percentileMillis(99), percentileMillis(100), count);
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One-shot conversion of a products.dat written with writeUTF/writeDouble, or with
+ * an older version of the fixed-width layout, into the current ProductRecord layout.
+ * The original file is kept next to the new one with a .legacy suffix. Costs stored
+ * as doubles are rounded to whole cents the way they were displayed, deleted records
+ * of a version 2 file are dropped, and the side files built from the old layout are
+ * removed so they are rebuilt on the next open.
+ */
+public class LegacyProductMigrator {
+
+    private LegacyProductMigrator() {
+    }
+
+    // Version 1 records had no flags or checksum; the fields sit at the same offsets
+    private static final int V1_RECORD_SIZE = ProductRecord.FLAGS_OFFSET;
+    // Version 2 added flags and a checksum but still stored the cost as a double
+    private static final int V2_RECORD_SIZE = ProductRecord.RECORD_SIZE;
+
+    /**
+     * Check whether a file still uses an old layout
+     * @param path product file to check
+     * @return true if the file has data but no fixed-width header, or a header of
+     * an older version
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isLegacy(String path) throws IOException {
+        File file = new File(path);
+        if (!file.exists() || file.length() == 0) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (file.length() < 4 || in.readInt() != ProductRecord.MAGIC) {
+                return true;
+            }
+            // a fixed-width file too short for its header is left for ProductStore to reject
+            return file.length() >= ProductRecord.HEADER_SIZE && in.readShort() < ProductRecord.VERSION;
+        }
+    }
+
+    /**
+     * Rewrite a legacy product file in place. The file's AppendLock is held
+     * throughout, and the path names either the old file or the new one at every
+     * moment, so a crash or a concurrent open never finds it missing.
+     * @param path product file to convert
+     * @return number of records migrated, or 0 if another process migrated it first
+     * @throws IOException if the file cannot be read or written
+     */
+    public static long migrate(String path) throws IOException {
+        Path source = Paths.get(path);
+        Path target = Paths.get(path + ".tmp");
+        Path backup = Paths.get(path + ".legacy");
+
+        try (AppendLock lock = AppendLock.open(path, true)) {
+            lock.acquire();
+            try {
+                if (!isLegacy(path)) {
+                    return 0;
+                }
+                Files.deleteIfExists(target);
+                long count;
+                try (ProductStore store = ProductStore.openWithoutIndexes(target.toString(), true);
+                     GroupCommitWriter writer = new GroupCommitWriter(store, 8192,
+                             GroupCommitWriter.SyncPolicy.NEVER, 0)) {
+                    count = isFixedWidth(source) ? copyFixedWidth(source, writer) : copyWriteUtf(source, writer);
+                    writer.flush();
+                    store.sync();
+                }
+
+                // the backup is a second name for the old file, so the move below
+                // replaces products.dat in one step instead of leaving a gap
+                keepBackup(source, backup);
+                ProductStore.deleteSideFiles(path);
+                Files.move(target, source, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return count;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private static void keepBackup(Path source, Path backup) throws IOException {
+        Files.deleteIfExists(backup);
+        try {
+            Files.createLink(backup, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            // no hard links on this file system
+            Files.copy(source, backup, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    private static boolean isFixedWidth(Path source) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(source))) {
+            return in.readInt() == ProductRecord.MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static long copyWriteUtf(Path source, GroupCommitWriter writer) throws IOException {
+        long count = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(source)))) {
+            while (true) {
+                Product product;
+                try {
+                    product = new Product(in.readUTF().trim(), in.readUTF().trim(),
+                            in.readUTF().trim(), in.readDouble());
+                } catch (EOFException e) {
+                    // end of file; a record torn part way through is dropped
+                    break;
+                }
+                writer.add(product);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Reads an older fixed-width file by its own header rather than ProductStore,
+    // which only understands the current version
+    private static long copyFixedWidth(Path source, GroupCommitWriter writer) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(ProductRecord.HEADER_SIZE);
+            if (channel.read(header, 0) < ProductRecord.HEADER_SIZE) {
+                throw new IOException("Product file header is truncated");
+            }
+            short version = header.getShort(ProductRecord.VERSION_POSITION);
+            int recordSize = header.getShort(ProductRecord.RECORD_SIZE_POSITION);
+            if (!(version == 1 && recordSize == V1_RECORD_SIZE) && !(version == 2 && recordSize == V2_RECORD_SIZE)) {
+                throw new IOException("Cannot migrate product file version " + version);
+            }
+            long available = (channel.size() - ProductRecord.HEADER_SIZE) / recordSize;
+            long total = Math.min(header.getLong(ProductRecord.RECORD_COUNT_POSITION), available);
+            ByteBuffer block = ByteBuffer.allocate(8192 * recordSize);
+            byte[] scratch = new byte[Product.DESCRIPTION_LENGTH];
+            long read = 0;
+            long count = 0;
+            while (read < total) {
+                int records = (int) Math.min(8192, total - read);
+                block.clear().limit(records * recordSize);
+                long position = ProductRecord.HEADER_SIZE + read * recordSize;
+                while (block.hasRemaining()) {
+                    position += channel.read(block, position);
+                }
+                for (int i = 0; i < records; i++) {
+                    int offset = i * recordSize;
+                    if (version >= 2 && ProductRecord.isDeleted(block, offset)) {
+                        continue;
+                    }
+                    writer.add(decodeDoubleCost(block, offset, scratch));
+                    count++;
+                }
+                read += records;
+            }
+            return count;
+        }
+    }
+
+    // Records before version 3 share the text fields of the current layout but hold
+    // the cost as a double in dollars
+    private static Product decodeDoubleCost(ByteBuffer buffer, int offset, byte[] scratch) {
+        return new Product(
+                ProductRecord.getField(buffer, offset + ProductRecord.NAME_OFFSET, Product.NAME_LENGTH, scratch),
+                ProductRecord.getField(buffer, offset + ProductRecord.DESCRIPTION_OFFSET,
+                        Product.DESCRIPTION_LENGTH, scratch),
+                ProductRecord.getField(buffer, offset + ProductRecord.ID_OFFSET, Product.ID_LENGTH, scratch),
+                buffer.getDouble(offset + ProductRecord.COST_OFFSET));
+    }
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : "products.dat";
+        try {
+            if (!isLegacy(path)) {
+                System.out.println(path + " is already in the current format");
+                return;
+            }
+            long count = migrate(path);
+            System.out.println("Migrated " + count + " records in " + path);
+        } catch (IOException e) {
+            System.err.println("Migration failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
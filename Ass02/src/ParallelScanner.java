@@ -0,0 +1,319 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Evaluates a match predicate over the records of a ProductStore on several cores.
+ * The record range (or the trigram candidate list) is split into chunks that are
+ * checked on a ForkJoinPool, and the hits of each chunk are joined left to right so
+ * the result is always in record order. Small inputs are scanned on the calling
+ * thread so tiny catalogs don't pay for the fork. Deleted records never count as hits.
+ */
+public class ParallelScanner {
+    private static final int SEQUENTIAL_THRESHOLD = 50_000;
+    private static final int MIN_CHUNK_SIZE = 8_192;
+    // records checked between two progress callbacks of a streaming scan
+    private static final int STREAM_CHUNK_SIZE = 262_144;
+
+    private final ProductStore store;
+    private final ForkJoinPool pool;
+    private final int parallelism;
+
+    /**
+     * Receives the hits of a streaming scan one chunk at a time
+     */
+    public interface ChunkListener {
+        /**
+         * @param hits ascending record numbers matched in this chunk
+         * @param scanned records checked so far, including this chunk
+         * @param total records the scan will check in all
+         * @return false to stop the scan after this chunk
+         */
+        boolean onChunk(long[] hits, long scanned, long total);
+    }
+
+    /**
+     * Test applied to the encoded slot of a record, without decoding it
+     */
+    public interface SlotMatcher {
+        /**
+         * @param buffer buffer holding the record
+         * @param offset start of the record within the buffer
+         * @param scratch buffer from RecordMatcher.newScratch, reused by the same thread
+         * @return true if the record matches
+         */
+        boolean matches(ByteBuffer buffer, int offset, byte[] scratch);
+    }
+
+    /**
+     * Create a scanner that uses one thread per available core
+     * @param store store to scan
+     */
+    public ParallelScanner(ProductStore store) {
+        this(store, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a scanner with a fixed number of worker threads
+     * @param store store to scan
+     * @param parallelism number of worker threads, 1 scans sequentially
+     */
+    public ParallelScanner(ProductStore store, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.store = store;
+        this.parallelism = parallelism;
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Find every record matching a predicate
+     * @param predicate test applied to each decoded product
+     * @return ascending record numbers of the matching products
+     */
+    public long[] scan(Predicate<Product> predicate) {
+        return run(new ScanTask(null, 0, store.getRecordCount(), predicate, null, null));
+    }
+
+    /**
+     * Find the records whose name, description or ID contain a term, ignoring case.
+     * ASCII terms are matched on the encoded bytes so only hits are ever decoded.
+     * @param term lowercased search term
+     * @return ascending record numbers of the matching products
+     */
+    public long[] scanContains(String term) {
+        RecordMatcher matcher = RecordMatcher.forTerm(term);
+        if (matcher == null) {
+            return scan(term, containsPredicate(term));
+        }
+        int[] candidates = store.candidates(term);
+        long size = candidates == null ? store.getRecordCount() : candidates.length;
+        return run(new ScanTask(candidates, 0, size, null, matcher, null));
+    }
+
+    /**
+     * Streaming form of scanContains. The records are checked in chunks, in record
+     * order, and the listener is called after each chunk so callers can show
+     * results and progress as they arrive or stop early.
+     * @param term lowercased search term
+     * @param listener called once per chunk, and once with no hits for an empty store
+     */
+    public void scanContains(String term, ChunkListener listener) {
+        scanContains(term, store.candidates(term), listener);
+    }
+
+    /**
+     * Streaming scan limited to a known set of records, e.g. the hits of an earlier
+     * term that this term extends
+     * @param term lowercased search term
+     * @param within ascending record numbers to check, or null to check the whole store
+     * @param listener called once per chunk, and once with no hits if there is nothing to check
+     */
+    public void scanContains(String term, int[] within, ChunkListener listener) {
+        RecordMatcher matcher = RecordMatcher.forTerm(term);
+        stream(within, matcher == null ? containsPredicate(term) : null, matcher, null, listener);
+    }
+
+    /**
+     * Streaming scan with a matcher that works on encoded records, such as a
+     * compiled ProductQuery
+     * @param matcher test applied to each record slot
+     * @param within ascending record numbers to check, or null to check the whole store
+     * @param listener called once per chunk, and once with no hits if there is nothing to check
+     */
+    public void scan(SlotMatcher matcher, int[] within, ChunkListener listener) {
+        stream(within, null, matcher, null, listener);
+    }
+
+    /**
+     * Streaming scan with a matcher that reads only one field, such as a ProductQuery
+     * on a single column. Only that field is read, from its column file when the
+     * store is COLUMNAR. The matcher gets the offset the record's slot would start
+     * at, so the field is at offset + column.fieldOffset as in a whole slot.
+     * @param matcher test applied to the field of each record
+     * @param column the one field the matcher reads
+     * @param within ascending record numbers to check, or null to check the whole store
+     * @param listener called once per chunk, and once with no hits if there is nothing to check
+     */
+    public void scan(SlotMatcher matcher, ProductColumns.Column column, int[] within, ChunkListener listener) {
+        stream(within, null, matcher, column, listener);
+    }
+
+    /**
+     * Find the records matching a substring predicate, using the trigram index to
+     * limit the records that are checked when it can
+     * @param term lowercased search term used to look up candidates
+     * @param predicate test applied to each candidate product
+     * @return ascending record numbers of the matching products
+     */
+    public long[] scan(String term, Predicate<Product> predicate) {
+        int[] candidates = store.candidates(term);
+        if (candidates == null) {
+            return scan(predicate);
+        }
+        return run(new ScanTask(candidates, 0, candidates.length, predicate, null, null));
+    }
+
+    /**
+     * Stop the worker threads
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private void stream(int[] candidates, Predicate<Product> predicate, SlotMatcher matcher,
+                        ProductColumns.Column column, ChunkListener listener) {
+        long total = candidates == null ? store.getRecordCount() : candidates.length;
+        if (total == 0) {
+            listener.onChunk(new long[0], 0, 0);
+            return;
+        }
+        for (long from = 0; from < total; from += STREAM_CHUNK_SIZE) {
+            long to = Math.min(total, from + STREAM_CHUNK_SIZE);
+            long[] hits = run(new ScanTask(candidates, from, to, predicate, matcher, column));
+            if (!listener.onChunk(hits, to, total)) {
+                return;
+            }
+        }
+    }
+
+    private static Predicate<Product> containsPredicate(String term) {
+        return product ->
+                product.getName().toLowerCase(Locale.ROOT).contains(term) ||
+                product.getDescription().toLowerCase(Locale.ROOT).contains(term) ||
+                product.getID().toLowerCase(Locale.ROOT).contains(term);
+    }
+
+    private long[] run(ScanTask task) {
+        long size = task.to - task.from;
+        if (pool == null || size <= SEQUENTIAL_THRESHOLD) {
+            return task.scanSequentially();
+        }
+        task.chunkSize = Math.max(MIN_CHUNK_SIZE, size / (parallelism * 4L));
+        return pool.invoke(task);
+    }
+
+    /**
+     * Checks positions [from, to) of either the whole file or a candidate list with
+     * either a Product predicate or a byte-level matcher, applied to the whole
+     * record or to a single field
+     */
+    private class ScanTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] candidates;
+        private final long from;
+        private final long to;
+        private final Predicate<Product> predicate;
+        private final SlotMatcher matcher;
+        // when set, only this field is read and the matcher gets the slot offset it implies
+        private final ProductColumns.Column column;
+        private long chunkSize = Long.MAX_VALUE;
+
+        ScanTask(int[] candidates, long from, long to, Predicate<Product> predicate,
+                 SlotMatcher matcher, ProductColumns.Column column) {
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+            this.predicate = predicate;
+            this.matcher = matcher;
+            this.column = column;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= chunkSize) {
+                return scanSequentially();
+            }
+            long middle = from + (to - from) / 2;
+            ScanTask left = new ScanTask(candidates, from, middle, predicate, matcher, column);
+            ScanTask right = new ScanTask(candidates, middle, to, predicate, matcher, column);
+            left.chunkSize = chunkSize;
+            right.chunkSize = chunkSize;
+            right.fork();
+            long[] leftHits = left.compute();
+            long[] rightHits = right.join();
+            long[] merged = Arrays.copyOf(leftHits, leftHits.length + rightHits.length);
+            System.arraycopy(rightHits, 0, merged, leftHits.length, rightHits.length);
+            return merged;
+        }
+
+        long[] scanSequentially() {
+            HitList hits = new HitList();
+            if (matcher != null && column != null) {
+                byte[] scratch = RecordMatcher.newScratch();
+                int fieldOffset = column.fieldOffset;
+                ProductStore.SlotVisitor check = (recordNo, buffer, offset) -> {
+                    if (matcher.matches(buffer, offset - fieldOffset, scratch) && !store.isDeleted(recordNo)) {
+                        hits.add(recordNo);
+                    }
+                };
+                if (candidates == null) {
+                    store.forEachFieldInRange(column, from, to, check);
+                } else {
+                    for (long i = from; i < to; i++) {
+                        store.visitField(column, candidates[(int) i], check);
+                    }
+                }
+            } else if (matcher != null) {
+                byte[] scratch = RecordMatcher.newScratch();
+                ProductStore.SlotVisitor check = (recordNo, buffer, offset) -> {
+                    if (matcher.matches(buffer, offset, scratch) && !store.isDeleted(recordNo)) {
+                        hits.add(recordNo);
+                    }
+                };
+                if (candidates == null) {
+                    store.forEachSlotInRange(from, to, check);
+                } else {
+                    for (long i = from; i < to; i++) {
+                        store.visitSlot(candidates[(int) i], check);
+                    }
+                }
+            } else {
+                ProductStore.ProductVisitor check = (recordNo, product) -> {
+                    if (predicate.test(product) && !store.isDeleted(recordNo)) {
+                        hits.add(recordNo);
+                    }
+                };
+                if (candidates == null) {
+                    store.forEachInRange(from, to, check);
+                } else {
+                    for (long i = from; i < to; i++) {
+                        int recordNo = candidates[(int) i];
+                        check.visit(recordNo, store.read(recordNo));
+                    }
+                }
+            }
+            return hits.toArray();
+        }
+    }
+
+    /**
+     * Growable list of record numbers
+     */
+    private static class HitList {
+        private long[] hits = new long[16];
+        private int count;
+
+        void add(long recordNo) {
+            if (count == hits.length) {
+                hits = Arrays.copyOf(hits, count * 2);
+            }
+            hits[count++] = recordNo;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(hits, count);
+        }
+    }
+}
@@ -1,60 +1,137 @@
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 
 public class Product implements Serializable {
     private String name;
     private String description;
     private String ID;
-    private double cost;
+    // fixed point: the cost in whole cents, so comparisons and sums are exact
+    private long costCents;
 
-    private static final int NAME_LENGTH = 35;
-    private static final int DESCRIPTION_LENGTH = 75;
-    private static final int ID_LENGTH = 6;
+    public static final int NAME_LENGTH = 35;
+    public static final int DESCRIPTION_LENGTH = 75;
+    public static final int ID_LENGTH = 6;
+    // keeps every cost exact as a double and every sum of costs inside a long
+    public static final long MAX_CENTS = 999_999_999_999_999L;
 
+    /**
+     * @param cost cost in dollars, rounded half up to whole cents as "%.2f" shows it
+     * @throws IllegalArgumentException if the cost is not a number or too large
+     */
     public Product(String name, String description, String ID, double cost) {
         this.name = name;
         this.description = description;
         this.ID = ID;
-        this.cost = cost;
+        this.costCents = toCents(cost);
+    }
+
+    /**
+     * @param costCents cost in whole cents
+     * @return a new product
+     * @throws IllegalArgumentException if the cost is too large
+     */
+    public static Product withCents(String name, String description, String ID, long costCents) {
+        Product product = new Product(name, description, ID, 0);
+        product.setCostCents(costCents);
+        return product;
+    }
+
+    /**
+     * Round a cost in dollars to whole cents
+     * @param cost cost in dollars
+     * @return the cost in cents, rounded half up as "%.2f" rounds it for display
+     * @throws IllegalArgumentException if the cost is not a number or too large
+     */
+    public static long toCents(double cost) {
+        if (!(Math.abs(cost) <= MAX_CENTS / 100.0)) {
+            throw new IllegalArgumentException("Cost out of range: " + cost);
+        }
+        long cents = Math.round(cost * 100);
+        if (cents / 100.0 == cost) {
+            return cents;
+        }
+        // a third decimal, e.g. 1.005 read from an old file, rounds on its shortest
+        // decimal form like the formatter does rather than on the binary value
+        return BigDecimal.valueOf(cost).setScale(2, RoundingMode.HALF_UP).movePointRight(2).longValueExact();
+    }
+
+    /**
+     * @param min a cost in dollars; infinities are allowed
+     * @return the lowest number of cents whose cost is at least min, from
+     * -MAX_CENTS up to MAX_CENTS + 1 when no cost is
+     */
+    public static long ceilCents(double min) {
+        if (!(min >= -MAX_CENTS / 100.0)) {
+            return Double.isNaN(min) ? MAX_CENTS + 1 : -MAX_CENTS;
+        }
+        if (min > MAX_CENTS / 100.0) {
+            return MAX_CENTS + 1;
+        }
+        long cents = Math.round(min * 100);
+        return cents / 100.0 < min ? cents + 1 : cents;
+    }
+
+    /**
+     * @param max a cost in dollars; infinities are allowed
+     * @return the highest number of cents whose cost is at most max, from
+     * -MAX_CENTS - 1 when no cost is up to MAX_CENTS
+     */
+    public static long floorCents(double max) {
+        if (!(max <= MAX_CENTS / 100.0)) {
+            return Double.isNaN(max) ? -MAX_CENTS - 1 : MAX_CENTS;
+        }
+        if (max < -MAX_CENTS / 100.0) {
+            return -MAX_CENTS - 1;
+        }
+        long cents = Math.round(max * 100);
+        return cents / 100.0 > max ? cents - 1 : cents;
     }
 
     // Getters
     public String getName() { return name; }
     public String getDescription() { return description; }
     public String getID() { return ID; }
-    public double getCost() { return cost; }
+    public double getCost() { return costCents / 100.0; }
+    public long getCostCents() { return costCents; }
 
     // Setters (except for ID)
     public void setName(String name) { this.name = name; }
     public void setDescription(String description) { this.description = description; }
-    public void setCost(double cost) { this.cost = cost; }
+    public void setCost(double cost) { this.costCents = toCents(cost); }
+
+    public void setCostCents(long costCents) {
+        if (Math.abs(costCents) > MAX_CENTS) {
+            throw new IllegalArgumentException("Cost out of range: " + costCents + " cents");
+        }
+        this.costCents = costCents;
+    }
 
+    // The text layout is written and read by ProductTextCodec, which pads and parses
+    // the columns directly instead of going through String.format and substrings
     public String getFormattedName() {
-        return String.format("%-" + NAME_LENGTH + "s", name);
+        return ProductTextCodec.pad(name, NAME_LENGTH, new StringBuilder(NAME_LENGTH)).toString();
     }
 
     public String getFormattedDescription() {
-        return String.format("%-" + DESCRIPTION_LENGTH + "s", description);
+        return ProductTextCodec.pad(description, DESCRIPTION_LENGTH, new StringBuilder(DESCRIPTION_LENGTH)).toString();
     }
 
     public String getFormattedID() {
-        return String.format("%-" + ID_LENGTH + "s", ID);
+        return ProductTextCodec.pad(ID, ID_LENGTH, new StringBuilder(ID_LENGTH)).toString();
     }
 
     public String toFormattedString() {
-        return String.format("%s%s%s%.2f", getFormattedName(), getFormattedDescription(), getFormattedID(), cost);
+        return ProductTextCodec.format(this, new StringBuilder(ProductTextCodec.COST_COLUMN + 12)).toString();
     }
 
     public static Product fromFormattedString(String formattedString) {
-        String name = formattedString.substring(0, NAME_LENGTH).trim();
-        String description = formattedString.substring(NAME_LENGTH, NAME_LENGTH + DESCRIPTION_LENGTH).trim();
-        String ID = formattedString.substring(NAME_LENGTH + DESCRIPTION_LENGTH, NAME_LENGTH + DESCRIPTION_LENGTH + ID_LENGTH).trim();
-        double cost = Double.parseDouble(formattedString.substring(NAME_LENGTH + DESCRIPTION_LENGTH + ID_LENGTH).trim());
-        return new Product(name, description, ID, cost);
+        return ProductTextCodec.parse(formattedString);
     }
 
     @Override
     public String toString() {
         return String.format("Product{ID='%s', name='%s', description='%s', cost=%.2f}",
-                ID, name, description, cost);
+                ID, name, description, getCost());
     }
 }
\ No newline at end of file
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Microbenchmarks for the hot paths of the product file: formatting and parsing a
+ * product, appending with a sync per product or per batch, and searching and
+ * rolling up the costs of generated catalogs. Every benchmark runs warmup iterations first and then measured ones,
+ * and reports the time per operation together with the bytes allocated and the
+ * garbage collections during the measured iterations, much like a JMH run with
+ * the gc profiler.
+ *
+ * Catalogs are written by ProductGenerator into the bench directory the first time
+ * they are needed and reused afterwards.
+ *
+ * This runner needs nothing but the JDK. The same cases, run under JMH with forks
+ * and the gc profiler, are in the jmh source set of the Gradle build.
+ *
+ * Usage: java ProductBenchmark [--sizes 10000,1000000] [--dir bench] [--warmup n] [--iterations n]
+ */
+public class ProductBenchmark {
+    private static final long SEED = 42;
+    // terms hit roughly a sixteenth, a thousandth and none of the generated names
+    private static final String[] SEARCH_TERMS = {"kettle", "drill 12", "zzz"};
+
+    private final int warmup;
+    private final int iterations;
+    private final List<String> rows = new ArrayList<>();
+
+    /**
+     * A measured piece of work
+     */
+    @FunctionalInterface
+    interface Operation {
+        /**
+         * Run the work once
+         * @return a value derived from the result, so the work cannot be optimised away
+         * @throws IOException if the work fails
+         */
+        long run() throws IOException;
+    }
+
+    /**
+     * @param warmup iterations run before measuring
+     * @param iterations measured iterations
+     */
+    public ProductBenchmark(int warmup, int iterations) {
+        if (warmup < 0 || iterations < 1) {
+            throw new IllegalArgumentException("Need at least one measured iteration");
+        }
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Time an operation and add a row to the report
+     * @param name benchmark name
+     * @param opsPerRun operations done by one call of the operation, for per-op figures
+     * @param operation the work
+     * @throws IOException if the work fails
+     */
+    public void measure(String name, long opsPerRun, Operation operation) throws IOException {
+        long blackhole = 0;
+        for (int i = 0; i < warmup; i++) {
+            blackhole += operation.run();
+        }
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocated = allocatedBytes();
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            blackhole += operation.run();
+            long elapsed = System.nanoTime() - start;
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+        long ops = opsPerRun * iterations;
+        allocated = allocatedBytes() - allocated;
+        rows.add(String.format("%-40s %14.1f %14.1f %14.1f %8d %8d   (%d)",
+                name, (double) total / ops, (double) best / opsPerRun,
+                allocated < 0 ? Double.NaN : (double) allocated / ops,
+                gcCount() - gcCount, gcMillis() - gcMillis, blackhole & 0xFF));
+    }
+
+    /**
+     * Print the rows measured so far
+     */
+    public void report() {
+        System.out.printf("%-40s %14s %14s %14s %8s %8s%n",
+                "Benchmark", "avg ns/op", "best ns/op", "alloc B/op", "gc.count", "gc.ms");
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+
+    private void formatBenchmarks() throws IOException {
+        ProductGenerator generator = new ProductGenerator(SEED);
+        int count = 10_000;
+        Product[] products = new Product[count];
+        String[] formatted = new String[count];
+        for (int i = 0; i < count; i++) {
+            products[i] = generator.next(i);
+            formatted[i] = products[i].toFormattedString();
+        }
+        measure("Product.toFormattedString", count, () -> {
+            long length = 0;
+            for (Product product : products) {
+                length += product.toFormattedString().length();
+            }
+            return length;
+        });
+        measure("Product.fromFormattedString", count, () -> {
+            long cents = 0;
+            for (String line : formatted) {
+                cents += Product.fromFormattedString(line).getCostCents();
+            }
+            return cents;
+        });
+        StringBuilder text = new StringBuilder(256);
+        measure("ProductTextCodec.format(StringBuilder)", count, () -> {
+            long length = 0;
+            for (Product product : products) {
+                text.setLength(0);
+                length += ProductTextCodec.format(product, text).length();
+            }
+            return length;
+        });
+        byte[] lines = new byte[count * 256];
+        int[] ends = new int[count];
+        measure("ProductTextCodec.encode(byte[])", count, () -> {
+            int at = 0;
+            for (int i = 0; i < count; i++) {
+                at += ProductTextCodec.encode(products[i], lines, at);
+                ends[i] = at;
+            }
+            return at;
+        });
+        measure("ProductTextCodec.parse(byte[])", count, () -> {
+            long cents = 0;
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                cents += ProductTextCodec.parse(lines, start, ends[i] - start).getCostCents();
+                start = ends[i];
+            }
+            return cents;
+        });
+    }
+
+    private void appendBenchmarks(Path dir) throws IOException {
+        Path file = dir.resolve("append.dat");
+        ProductGenerator generator = new ProductGenerator(SEED);
+        int batch = 1_000;
+        Files.deleteIfExists(file);
+        try (ProductStore store = ProductStore.openWithoutIndexes(file.toString(), true)) {
+            // one fsync per product, as RandProductMaker does for every click
+            measure("ProductStore.append+sync", 100, () -> {
+                long last = 0;
+                for (int i = 0; i < 100; i++) {
+                    last = store.append(generator.next(store.getRecordCount()));
+                    store.sync();
+                }
+                return last;
+            });
+            List<Product> products = new ArrayList<>(batch);
+            for (int i = 0; i < batch; i++) {
+                products.add(generator.next(i));
+            }
+            measure("ProductStore.addAll(" + batch + ")+sync", batch, () -> {
+                long first = store.addAll(products);
+                store.sync();
+                return first;
+            });
+        }
+        Files.deleteIfExists(file);
+    }
+
+    private void searchBenchmarks(Path dir, long size) throws IOException {
+        String path = dir.resolve("catalog-" + size + ".dat").toString();
+        long start = System.nanoTime();
+        ProductGenerator.ensureCatalog(path, size, SEED);
+        System.out.printf("Catalog of %,d records ready in %.1f s%n", size, (System.nanoTime() - start) / 1e9);
+        try (ProductService service = ProductService.open(path, false)) {
+            // the service's result cache and keystroke refinement would answer every
+            // run after the first from the previous hits, so search on a scanner
+            ParallelScanner scanner = new ParallelScanner(service.getStore());
+            try {
+                for (String term : SEARCH_TERMS) {
+                    measure(String.format("search(\"%s\") %,d", term, size), 1, () -> scanner.scanContains(term).length);
+                }
+            } finally {
+                scanner.shutdown();
+            }
+            measure(String.format("summarize %,d", size), 1, () -> service.summarize(1000, 100).getSumCents());
+        }
+    }
+
+    private static long allocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        // the scan runs on pool threads, so every live thread is counted; bytes of
+        // threads that ended in between are lost, which the pool's long-lived
+        // workers avoid
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    public static void main(String[] args) {
+        String sizes = "10000,1000000";
+        String dir = "bench";
+        int warmup = 3;
+        int iterations = 5;
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                usage();
+            }
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = args[i + 1];
+                    break;
+                case "--dir":
+                    dir = args[i + 1];
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    usage();
+            }
+        }
+        ProductBenchmark benchmark = new ProductBenchmark(warmup, iterations);
+        try {
+            Path benchDir = Files.createDirectories(Paths.get(dir));
+            benchmark.formatBenchmarks();
+            benchmark.appendBenchmarks(benchDir);
+            for (String size : sizes.split(",")) {
+                benchmark.searchBenchmarks(benchDir, Long.parseLong(size.trim()));
+            }
+        } catch (IOException e) {
+            System.err.println("Benchmark failed: " + e.getMessage());
+            System.exit(1);
+        }
+        benchmark.report();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java ProductBenchmark [--sizes 10000,1000000] [--dir bench]"
+                + " [--warmup n] [--iterations n]");
+        System.exit(2);
+    }
+}
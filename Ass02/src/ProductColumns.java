@@ -0,0 +1,386 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Column files kept next to products.dat when the store runs in COLUMNAR mode:
+ * products.name.col, products.desc.col, products.id.col and products.cost.col.
+ * Each holds one field of every record, packed at a fixed width in record order
+ * with no header, so record n of a column starts at n * width. The text columns
+ * hold the same space-padded UTF-8 bytes as the row file and the cost column is
+ * a packed array of longs, the costs in cents.
+ *
+ * A scan that only looks at one field reads that column alone, e.g. 6 bytes per
+ * record for an ID instead of the whole row slot. The row file stays the
+ * source of truth: columns are written before the header count is bumped, and a
+ * column that is shorter than the row file is filled in from it when the store
+ * is opened for writing. Readers only use the columns for records they cover.
+ * Delete flags live in the row file alone. A ROW mode writer does not keep the
+ * columns open but writes through to the records they already cover.
+ *
+ * An update in place writes the row slot and then the columns, so a crash in
+ * between would leave old fields in the columns. products.cols therefore holds
+ * the row header's rewrite count as of the last rewrite that reached the columns.
+ * It is advanced after each rewrite's column write, and only while it still
+ * matched the count before that rewrite. Columns whose stamp does not match the
+ * header are not used, and a COLUMNAR writer rebuilds them when it opens them.
+ */
+public class ProductColumns implements Closeable {
+
+    /**
+     * The fields stored in their own file
+     */
+    public enum Column {
+        NAME(ProductRecord.NAME_OFFSET, Product.NAME_LENGTH, ".name.col"),
+        DESCRIPTION(ProductRecord.DESCRIPTION_OFFSET, Product.DESCRIPTION_LENGTH, ".desc.col"),
+        ID(ProductRecord.ID_OFFSET, Product.ID_LENGTH, ".id.col"),
+        COST(ProductRecord.COST_OFFSET, Long.BYTES, ".cost.col");
+
+        public final int fieldOffset;
+        public final int width;
+        private final String extension;
+
+        Column(int fieldOffset, int width, String extension) {
+            this.fieldOffset = fieldOffset;
+            this.width = width;
+            this.extension = extension;
+        }
+    }
+
+    private static final String STAMP_EXTENSION = ".cols";
+
+    private final ColumnFile[] files = new ColumnFile[Column.values().length];
+    private FileChannel stamp;
+    private ByteBuffer writeBuffer;
+    private volatile long coveredRecords;
+    // rewrite count of the row header the columns were last found to match
+    private long matchedRewrites = -1;
+
+    /**
+     * One memory-mapped column, split into segments like the row file
+     */
+    private static class ColumnFile {
+        final FileChannel channel;
+        final int width;
+        final long segmentSize;
+        final List<MappedByteBuffer> segments = new ArrayList<>();
+        volatile MappedByteBuffer[] view = new MappedByteBuffer[0];
+        long mappedLength;
+
+        ColumnFile(FileChannel channel, int width) {
+            this.channel = channel;
+            this.width = width;
+            this.segmentSize = (Integer.MAX_VALUE / width) * (long) width;
+        }
+
+        long records() throws IOException {
+            return channel.size() / width;
+        }
+
+        void map(long records) throws IOException {
+            long usable = records * width;
+            if (usable == mappedLength) {
+                return;
+            }
+            int first = segments.isEmpty() || usable < mappedLength ? 0 : segments.size() - 1;
+            while (segments.size() > first) {
+                segments.remove(segments.size() - 1);
+            }
+            for (long start = first * segmentSize; start < usable; start += segmentSize) {
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(segmentSize, usable - start)));
+            }
+            mappedLength = usable;
+            view = segments.toArray(new MappedByteBuffer[0]);
+        }
+    }
+
+    /**
+     * Open the column files of a product file. When writable, missing files are
+     * created, columns are cut back to the shortest one and then filled in from
+     * the row file so all of them cover every record; columns whose stamp does
+     * not match the row header are rebuilt from scratch.
+     * @param path location of the product file
+     * @param store the open row store
+     * @param writable true if the store appends records
+     * @return the open columns
+     * @throws IOException if a column cannot be opened, read or written
+     */
+    public static ProductColumns open(String path, ProductStore store, boolean writable) throws IOException {
+        ProductColumns columns = new ProductColumns();
+        try {
+            for (Column column : Column.values()) {
+                columns.files[column.ordinal()] = new ColumnFile(openFile(path, column.extension, writable),
+                        column.width);
+            }
+            columns.stamp = openFile(path, STAMP_EXTENSION, writable);
+            if (writable) {
+                if (readStamp(columns.stamp) != store.getRewriteCount()) {
+                    for (ColumnFile file : columns.files) {
+                        file.channel.truncate(0);
+                    }
+                }
+                columns.catchUp(store);
+                writeStamp(columns.stamp, store.getRewriteCount());
+            }
+            columns.refresh(store.getRecordCount(), store.getRewriteCount());
+        } catch (IOException e) {
+            columns.close();
+            throw e;
+        }
+        return columns;
+    }
+
+    private static FileChannel openFile(String path, String extension, boolean writable) throws IOException {
+        String file = ProductStore.sidePath(path, extension);
+        return writable
+                ? FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+    }
+
+    /**
+     * Map whatever part of the columns the row file has committed. While the
+     * stamp does not match the header's rewrite count no records are covered, so
+     * readers use the row file.
+     * @param recordCount records visible in the row file
+     * @param rewriteCount rewrite count of the row file header
+     * @throws IOException if a column cannot be read or mapped
+     */
+    public synchronized void refresh(long recordCount, long rewriteCount) throws IOException {
+        if (rewriteCount != matchedRewrites) {
+            if (readStamp(stamp) != rewriteCount) {
+                coveredRecords = 0;
+                return;
+            }
+            matchedRewrites = rewriteCount;
+        }
+        long covered = recordCount;
+        for (ColumnFile file : files) {
+            covered = Math.min(covered, file.records());
+        }
+        for (ColumnFile file : files) {
+            file.map(covered);
+        }
+        coveredRecords = covered;
+    }
+
+    /**
+     * Record that a rewrite has reached the columns. Called holding the AppendLock
+     * after the column write, or right after the row write for a delete.
+     * @param previousRewrites the header's rewrite count before the rewrite
+     * @param rewrites the header's rewrite count after it
+     * @throws IOException if the stamp cannot be written
+     */
+    public synchronized void stampRewrite(long previousRewrites, long rewrites) throws IOException {
+        advanceStamp(stamp, previousRewrites, rewrites);
+    }
+
+    /**
+     * stampRewrite for a store that does not keep the columns open (ROW mode).
+     * Nothing happens when the product file has no columns.
+     * @param path location of the product file
+     * @param previousRewrites the header's rewrite count before the rewrite
+     * @param rewrites the header's rewrite count after it
+     * @throws IOException if the stamp cannot be written
+     */
+    public static void stampRewrite(String path, long previousRewrites, long rewrites) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(ProductStore.sidePath(path, STAMP_EXTENSION)),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            advanceStamp(channel, previousRewrites, rewrites);
+        } catch (NoSuchFileException e) {
+            // no columns to keep in step
+        }
+    }
+
+    // Columns that missed an earlier rewrite keep their old stamp until rebuilt
+    private static void advanceStamp(FileChannel channel, long previousRewrites, long rewrites) throws IOException {
+        if (readStamp(channel) == previousRewrites) {
+            writeStamp(channel, rewrites);
+        }
+    }
+
+    private static long readStamp(FileChannel channel) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+        while (value.hasRemaining()) {
+            if (channel.read(value, value.position()) < 0) {
+                return -1;
+            }
+        }
+        return value.getLong(0);
+    }
+
+    private static void writeStamp(FileChannel channel, long rewrites) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+        value.putLong(0, rewrites);
+        while (value.hasRemaining()) {
+            channel.write(value, value.position());
+        }
+    }
+
+    /**
+     * Remove the column files of a product file, e.g. after compaction renumbered
+     * its records. Stores that still have them mapped keep reading the old data.
+     * @param path location of the product file
+     * @throws IOException if a file cannot be deleted
+     */
+    public static void delete(String path) throws IOException {
+        Files.deleteIfExists(Paths.get(ProductStore.sidePath(path, STAMP_EXTENSION)));
+        for (Column column : Column.values()) {
+            Files.deleteIfExists(Paths.get(ProductStore.sidePath(path, column.extension)));
+        }
+    }
+
+    /**
+     * @return number of leading records every column holds
+     */
+    public long getCoveredRecords() {
+        return coveredRecords;
+    }
+
+    /**
+     * Split encoded rows into their columns and write them at their record numbers.
+     * Called by ProductStore before the row file header covers appended records,
+     * and for records updated in place.
+     * @param rows buffer holding count encoded records starting at index 0
+     * @param count number of records in the buffer
+     * @param firstRecordNo record number of the first row
+     * @throws IOException if a write fails
+     */
+    public synchronized void write(ByteBuffer rows, int count, long firstRecordNo) throws IOException {
+        for (Column column : Column.values()) {
+            writeColumn(files[column.ordinal()].channel, column, rows, count, firstRecordNo,
+                    writeBuffer(count * column.width));
+        }
+    }
+
+    /**
+     * Write rows into the column files of a product file for a store that does not
+     * keep them open (ROW mode). Only the part of each column that already reaches
+     * those record numbers is written, so no column grows: whatever it holds there
+     * is left over from an earlier writer and would otherwise be served by a
+     * COLUMNAR reader in place of the new fields. Nothing happens when the product
+     * file has no columns.
+     * @param path location of the product file
+     * @param rows buffer holding count encoded records starting at index 0
+     * @param count number of records in the buffer
+     * @param firstRecordNo record number of the first row
+     * @throws IOException if a column cannot be written
+     */
+    public static void writeThrough(String path, ByteBuffer rows, int count, long firstRecordNo)
+            throws IOException {
+        if (!Files.exists(Paths.get(ProductStore.sidePath(path, Column.NAME.extension)))) {
+            return;
+        }
+        for (Column column : Column.values()) {
+            try (FileChannel channel = FileChannel.open(Paths.get(ProductStore.sidePath(path, column.extension)),
+                    StandardOpenOption.WRITE)) {
+                long reached = Math.min(count, channel.size() / column.width - firstRecordNo);
+                if (reached > 0) {
+                    writeColumn(channel, column, rows, (int) reached, firstRecordNo,
+                            ByteBuffer.allocate((int) reached * column.width));
+                }
+            } catch (NoSuchFileException e) {
+                // a column that is gone is rebuilt in full by the next COLUMNAR writer
+            }
+        }
+    }
+
+    private static void writeColumn(FileChannel channel, Column column, ByteBuffer rows, int count,
+                                    long firstRecordNo, ByteBuffer buffer) throws IOException {
+        for (int i = 0; i < count; i++) {
+            buffer.put(i * column.width, rows, i * ProductRecord.RECORD_SIZE + column.fieldOffset,
+                    column.width);
+        }
+        buffer.limit(count * column.width);
+        long position = firstRecordNo * column.width;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * @param column column to read
+     * @param recordNo record number below getCoveredRecords
+     * @return the buffer holding the field of that record
+     */
+    public ByteBuffer segmentFor(Column column, long recordNo) {
+        ColumnFile file = files[column.ordinal()];
+        return file.view[(int) (recordNo * column.width / file.segmentSize)];
+    }
+
+    /**
+     * @param column column to read
+     * @param recordNo record number below getCoveredRecords
+     * @return offset of the field within the buffer from segmentFor
+     */
+    public int offsetFor(Column column, long recordNo) {
+        return (int) (recordNo * column.width % files[column.ordinal()].segmentSize);
+    }
+
+    /**
+     * Force the column files out to the storage device
+     * @throws IOException if the flush fails
+     */
+    public void sync() throws IOException {
+        for (ColumnFile file : files) {
+            file.channel.force(false);
+        }
+        stamp.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        coveredRecords = 0;
+        for (ColumnFile file : files) {
+            if (file != null) {
+                file.segments.clear();
+                file.view = new MappedByteBuffer[0];
+                file.channel.close();
+            }
+        }
+        if (stamp != null) {
+            stamp.close();
+        }
+    }
+
+    // Cuts every column back to the shortest (or to the row file) and copies the
+    // missing fields out of the row file
+    private void catchUp(ProductStore store) throws IOException {
+        long covered = store.getRecordCount();
+        for (ColumnFile file : files) {
+            covered = Math.min(covered, file.records());
+        }
+        for (ColumnFile file : files) {
+            file.channel.truncate(covered * file.width);
+        }
+        long total = store.getRecordCount();
+        int batch = 8192;
+        ByteBuffer rows = ByteBuffer.allocateDirect(batch * ProductRecord.RECORD_SIZE);
+        for (long first = covered; first < total; first += batch) {
+            int count = (int) Math.min(batch, total - first);
+            rows.clear();
+            long start = first;
+            store.forEachSlotInRange(first, first + count, (recordNo, buffer, offset) ->
+                    rows.put((int) (recordNo - start) * ProductRecord.RECORD_SIZE,
+                            buffer, offset, ProductRecord.RECORD_SIZE));
+            write(rows, count, first);
+        }
+    }
+
+    private ByteBuffer writeBuffer(int bytes) {
+        if (writeBuffer == null || writeBuffer.capacity() < bytes) {
+            writeBuffer = ByteBuffer.allocateDirect(bytes);
+        }
+        writeBuffer.clear();
+        return writeBuffer;
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Background thread that compacts a product file once enough of it has been
+ * deleted. Every interval it looks at the store's deleted count and, past the
+ * threshold, runs ProductStore.compact at the lowest thread priority and paced to
+ * a byte rate, so the copy leaves the disk and the cores to searches. An attempt
+ * abandoned because of a concurrent update is simply retried at the next check.
+ */
+public class ProductCompactor implements Closeable {
+    private final ProductStore store;
+    private final double minDeletedShare;
+    private final long bytesPerSecond;
+    private final long intervalMillis;
+    private final Object wakeUp = new Object();
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile long compactions;
+    private volatile long slotsReclaimed;
+    private volatile IOException lastError;
+
+    /**
+     * Start the compactor thread
+     * @param store store to compact, opened for writing
+     * @param minDeletedShare share of deleted records, between 0 and 1, that triggers a compaction
+     * @param bytesPerSecond most bytes copied per second, or 0 for no limit
+     * @param intervalMillis time between two checks of the store
+     */
+    public ProductCompactor(ProductStore store, double minDeletedShare, long bytesPerSecond, long intervalMillis) {
+        if (minDeletedShare <= 0 || minDeletedShare > 1) {
+            throw new IllegalArgumentException("Deleted share must be in (0, 1]: " + minDeletedShare);
+        }
+        this.store = store;
+        this.minDeletedShare = minDeletedShare;
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMillis = intervalMillis;
+        thread = new Thread(this::run, "product-compactor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * @return true if enough of the store is deleted to be worth copying
+     */
+    public boolean isDue() {
+        long deleted = store.getDeletedCount();
+        return deleted > 0 && deleted >= minDeletedShare * store.getRecordCount();
+    }
+
+    public long getCompactions() {
+        return compactions;
+    }
+
+    public long getSlotsReclaimed() {
+        return slotsReclaimed;
+    }
+
+    /**
+     * @return the error of the last failed compaction, or null if none failed
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Stop the thread, abandoning a compaction in progress. The store is left as
+     * it was.
+     * @throws IOException if interrupted while waiting for the thread
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (wakeUp) {
+            wakeUp.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping the compactor");
+        }
+    }
+
+    // The thread is never interrupted: an interrupt during a channel read would
+    // close the store's channel, so close wakes it with notify instead
+    private void run() {
+        while (!closed) {
+            synchronized (wakeUp) {
+                try {
+                    wakeUp.wait(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (closed) {
+                return;
+            }
+            try {
+                store.refresh();
+                if (isDue()) {
+                    long reclaimed = store.compact(bytesPerSecond, () -> closed);
+                    if (reclaimed >= 0) {
+                        compactions++;
+                        slotsReclaimed += reclaimed;
+                    }
+                }
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+    }
+}
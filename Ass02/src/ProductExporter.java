@@ -0,0 +1,378 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Headless exporter that streams the live records of products.dat out as CSV,
+ * JSON Lines or the formatted text layout of Product.toFormattedString. Records are
+ * read in order from the store's mapped slots and encoded straight from their bytes
+ * into a reusable output buffer, so no Product or String is built per record and
+ * the output is written in large blocks.
+ *
+ * With more than one thread the catalog is cut into chunks of CHUNK_RECORDS that
+ * are encoded on a pool and written in record order. A fixed set of buffers is
+ * passed around between the workers and the writer, so memory use depends on the
+ * thread count and not on the size of the catalog.
+ *
+ * CSV has a name,description,id,cost header and quotes fields the way BulkImporter
+ * reads them back, so an export can be imported with --header. JSON Lines writes
+ * one {"name":..,"description":..,"id":..,"cost":..} object per line with the cost
+ * as a number. Lines end with '\n' in every format.
+ *
+ * Usage: java ProductExporter csv|jsonl|text [products.dat] [output|-] [--threads n]
+ */
+public class ProductExporter {
+    // records encoded into one buffer before it is written
+    private static final int CHUNK_RECORDS = 8192;
+    private static final int BUFFER_BYTES = 1 << 20;
+    // longest line any format can produce from one slot, every text byte escaped
+    private static final int MAX_LINE_BYTES = 1024;
+
+    private static final byte[] CSV_HEADER = ascii("name,description,id,cost\n");
+    private static final byte[] JSON_NAME = ascii("{\"name\":\"");
+    private static final byte[] JSON_DESCRIPTION = ascii("\",\"description\":\"");
+    private static final byte[] JSON_ID = ascii("\",\"id\":\"");
+    private static final byte[] JSON_COST = ascii("\",\"cost\":");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    /**
+     * Output formats
+     */
+    public enum Format {
+        CSV, JSONL, TEXT;
+
+        /**
+         * @param name format name, ignoring case
+         * @return the format
+         * @throws IllegalArgumentException if there is no such format
+         */
+        public static Format of(String name) {
+            try {
+                return valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown export format: " + name);
+            }
+        }
+    }
+
+    private final ProductStore store;
+    private final Format format;
+    private final int parallelism;
+
+    /**
+     * @param store store to export
+     * @param format output format
+     * @param parallelism number of encoding threads, 1 encodes on the calling thread
+     */
+    public ProductExporter(ProductStore store, Format format, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        this.store = store;
+        this.format = format;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Write every live record to a stream. The stream is not closed.
+     * @param out destination; writes are already large, so it need not be buffered
+     * @return number of records written
+     * @throws IOException if the store cannot be refreshed or the output cannot be written
+     */
+    public long export(OutputStream out) throws IOException {
+        store.refresh();
+        long records = store.getRecordCount();
+        if (format == Format.CSV) {
+            out.write(CSV_HEADER);
+        }
+        long written = parallelism == 1 ? exportSequential(out, records) : exportParallel(out, records);
+        out.flush();
+        return written;
+    }
+
+    private long exportSequential(OutputStream out, long records) throws IOException {
+        Encoder encoder = new Encoder();
+        long written = 0;
+        for (long from = 0; from < records; from += CHUNK_RECORDS) {
+            written += encoder.encodeRange(from, Math.min(records, from + CHUNK_RECORDS));
+            out.write(encoder.bytes, 0, encoder.length);
+        }
+        return written;
+    }
+
+    // Workers encode chunks into buffers taken from a free list and the calling
+    // thread writes the chunks in order, handing each buffer back once it is out.
+    // At most 2 * parallelism chunks are in flight, so workers never wait for a
+    // buffer and the writer always has the next chunk queued.
+    private long exportParallel(OutputStream out, long records) throws IOException {
+        int window = parallelism * 2;
+        BlockingQueue<Encoder> free = new ArrayBlockingQueue<>(window);
+        for (int i = 0; i < window; i++) {
+            free.add(new Encoder());
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "product-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<Encoder>> pending = new ArrayDeque<>(window);
+        long next = 0;
+        long written = 0;
+        try {
+            while (next < records || !pending.isEmpty()) {
+                while (next < records && pending.size() < window) {
+                    long from = next;
+                    long to = Math.min(records, from + CHUNK_RECORDS);
+                    pending.add(pool.submit(() -> {
+                        Encoder encoder = free.take();
+                        encoder.encodeRange(from, to);
+                        return encoder;
+                    }));
+                    next = to;
+                }
+                Encoder encoder = pending.remove().get();
+                out.write(encoder.bytes, 0, encoder.length);
+                written += encoder.records;
+                free.add(encoder);
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Export failed: " + cause, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+        return written;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Encodes a run of slots into one growable buffer; used by one thread at a time
+     */
+    private class Encoder {
+        private final byte[] slot = new byte[ProductRecord.COST_OFFSET];
+        byte[] bytes = new byte[BUFFER_BYTES];
+        int length;
+        long records;
+
+        long encodeRange(long from, long to) {
+            length = 0;
+            records = 0;
+            store.forEachSlotInRange(from, to, (recordNo, buffer, offset) -> {
+                if (!ProductRecord.isDeleted(buffer, offset)) {
+                    encode(buffer, offset);
+                }
+            });
+            return records;
+        }
+
+        private void encode(ByteBuffer buffer, int offset) {
+            if (bytes.length - length < MAX_LINE_BYTES) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            buffer.get(offset, slot);
+            long cents = buffer.getLong(offset + ProductRecord.COST_OFFSET);
+            int at = length;
+            switch (format) {
+                case CSV:
+                    at = csvField(ProductRecord.NAME_OFFSET, Product.NAME_LENGTH, at);
+                    bytes[at++] = ',';
+                    at = csvField(ProductRecord.DESCRIPTION_OFFSET, Product.DESCRIPTION_LENGTH, at);
+                    bytes[at++] = ',';
+                    at = csvField(ProductRecord.ID_OFFSET, Product.ID_LENGTH, at);
+                    bytes[at++] = ',';
+                    at = ProductTextCodec.encodeCents(cents, bytes, at);
+                    break;
+                case JSONL:
+                    at = put(JSON_NAME, at);
+                    at = jsonField(ProductRecord.NAME_OFFSET, Product.NAME_LENGTH, at);
+                    at = put(JSON_DESCRIPTION, at);
+                    at = jsonField(ProductRecord.DESCRIPTION_OFFSET, Product.DESCRIPTION_LENGTH, at);
+                    at = put(JSON_ID, at);
+                    at = jsonField(ProductRecord.ID_OFFSET, Product.ID_LENGTH, at);
+                    at = put(JSON_COST, at);
+                    at = ProductTextCodec.encodeCents(cents, bytes, at);
+                    bytes[at++] = '}';
+                    break;
+                case TEXT:
+                    at = textField(ProductRecord.NAME_OFFSET, Product.NAME_LENGTH, at);
+                    at = textField(ProductRecord.DESCRIPTION_OFFSET, Product.DESCRIPTION_LENGTH, at);
+                    at = textField(ProductRecord.ID_OFFSET, Product.ID_LENGTH, at);
+                    at = ProductTextCodec.encodeCents(cents, bytes, at);
+                    break;
+            }
+            bytes[at++] = '\n';
+            length = at;
+            records++;
+        }
+
+        // Fields are trimmed at both ends like ProductRecord.getField; the bytes
+        // trimmed are all ASCII, so UTF-8 text can be trimmed without decoding it
+        private int trimStart(int from, int to) {
+            while (from < to && (slot[from] & 0xFF) <= ' ') {
+                from++;
+            }
+            return from;
+        }
+
+        private int trimEnd(int from, int to) {
+            while (to > from && (slot[to - 1] & 0xFF) <= ' ') {
+                to--;
+            }
+            return to;
+        }
+
+        // Pads to the width in characters, as toFormattedString does, counting one
+        // per UTF-8 lead byte and two for characters outside the BMP
+        private int textField(int field, int width, int at) {
+            int from = trimStart(field, field + width);
+            int to = trimEnd(from, field + width);
+            int chars = 0;
+            for (int i = from; i < to; i++) {
+                int b = slot[i] & 0xFF;
+                if ((b & 0xC0) != 0x80) {
+                    chars += b >= 0xF0 ? 2 : 1;
+                }
+            }
+            System.arraycopy(slot, from, bytes, at, to - from);
+            at += to - from;
+            for (; chars < width; chars++) {
+                bytes[at++] = ' ';
+            }
+            return at;
+        }
+
+        private int csvField(int field, int width, int at) {
+            int from = trimStart(field, field + width);
+            int to = trimEnd(from, field + width);
+            boolean quote = false;
+            for (int i = from; i < to && !quote; i++) {
+                byte b = slot[i];
+                quote = b == ',' || b == '"' || b == '\n' || b == '\r';
+            }
+            if (!quote) {
+                System.arraycopy(slot, from, bytes, at, to - from);
+                return at + to - from;
+            }
+            bytes[at++] = '"';
+            for (int i = from; i < to; i++) {
+                if (slot[i] == '"') {
+                    bytes[at++] = '"';
+                }
+                bytes[at++] = slot[i];
+            }
+            bytes[at++] = '"';
+            return at;
+        }
+
+        // UTF-8 is valid JSON text, so only quotes, backslashes and control
+        // characters need escaping
+        private int jsonField(int field, int width, int at) {
+            int from = trimStart(field, field + width);
+            int to = trimEnd(from, field + width);
+            for (int i = from; i < to; i++) {
+                byte b = slot[i];
+                if (b == '"' || b == '\\') {
+                    bytes[at++] = '\\';
+                    bytes[at++] = b;
+                } else if (b >= 0 && b < ' ') {
+                    bytes[at++] = '\\';
+                    switch (b) {
+                        case '\n':
+                            bytes[at++] = 'n';
+                            break;
+                        case '\r':
+                            bytes[at++] = 'r';
+                            break;
+                        case '\t':
+                            bytes[at++] = 't';
+                            break;
+                        default:
+                            bytes[at++] = 'u';
+                            bytes[at++] = '0';
+                            bytes[at++] = '0';
+                            bytes[at++] = HEX[b >> 4];
+                            bytes[at++] = HEX[b & 0xF];
+                            break;
+                    }
+                } else {
+                    bytes[at++] = b;
+                }
+            }
+            return at;
+        }
+
+        private int put(byte[] constant, int at) {
+            System.arraycopy(constant, 0, bytes, at, constant.length);
+            return at + constant.length;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java ProductExporter csv|jsonl|text [products.dat] [output|-] [--threads n]");
+            System.exit(2);
+        }
+        String source = "products.dat";
+        String target = "-";
+        int threads = Runtime.getRuntime().availableProcessors();
+        int positional = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (positional++ == 0) {
+                source = args[i];
+            } else {
+                target = args[i];
+            }
+        }
+
+        try {
+            Format format = Format.of(args[0]);
+            long start = System.nanoTime();
+            long records;
+            try (ProductStore store = ProductStore.openWithoutIndexes(source, false);
+                 OutputStream out = target.equals("-") ? new FileOutputStream(FileDescriptor.out)
+                         : Files.newOutputStream(Paths.get(target))) {
+                records = new ProductExporter(store, format, threads).export(out);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (target.equals("-")) {
+                System.err.printf("Exported %,d products in %.1f s%n", records, seconds);
+            } else {
+                long bytes = Files.size(Paths.get(target));
+                System.err.printf("Exported %,d products to %s: %,d bytes in %.1f s (%.0f MB/s)%n",
+                        records, target, bytes, seconds, bytes / 1e6 / seconds);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } catch (IOException e) {
+            System.err.println("Export failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
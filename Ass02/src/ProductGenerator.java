@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Writes a synthetic catalog of any size into a product file, for benchmarks and
+ * load tests. Names and descriptions are drawn from small word lists so that
+ * searches for a word hit a predictable share of the records; IDs are the record
+ * number in base 36, so they are unique up to 36^6 records. The same seed always
+ * produces the same catalog. Products are appended in batches, so memory use
+ * does not depend on the size.
+ *
+ * Usage: java ProductGenerator count [products.dat] [--seed n]
+ */
+public class ProductGenerator {
+    private static final int BATCH_SIZE = 8192;
+    private static final String[] ADJECTIVES = {
+            "red", "blue", "green", "steel", "wooden", "compact", "deluxe", "classic",
+            "portable", "heavy", "smart", "vintage", "quiet", "rapid", "solar", "mini"};
+    private static final String[] NOUNS = {
+            "widget", "gadget", "lamp", "chair", "kettle", "drill", "speaker", "backpack",
+            "router", "blender", "monitor", "tent", "clock", "guitar", "scooter", "camera"};
+    private static final String[] FEATURES = {
+            "with a two year warranty", "for indoor and outdoor use", "in a gift box",
+            "with rechargeable battery", "made from recycled parts", "for beginners",
+            "with free shipping", "rated for heavy duty work"};
+
+    private final SplittableRandom random;
+
+    /**
+     * @param seed seed of the catalog; equal seeds give equal catalogs
+     */
+    public ProductGenerator(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Make the product for a record number
+     * @param recordNo position of the product in the catalog, used for its ID
+     * @return a random product
+     */
+    public Product next(long recordNo) {
+        String adjective = ADJECTIVES[random.nextInt(ADJECTIVES.length)];
+        String noun = NOUNS[random.nextInt(NOUNS.length)];
+        String name = adjective + " " + noun + " " + random.nextInt(1000);
+        String description = "A " + adjective + " " + noun + " " + FEATURES[random.nextInt(FEATURES.length)];
+        String id = Long.toString(recordNo, 36);
+        // between 0.01 and 999.99
+        return Product.withCents(name, description, id, 1 + random.nextInt(99_999));
+    }
+
+    /**
+     * Append generated products to a store
+     * @param store store to append to, opened for writing
+     * @param count number of products to add
+     * @throws IOException if a write fails
+     */
+    public void fill(ProductStore store, long count) throws IOException {
+        long first = store.getRecordCount();
+        List<Product> batch = new ArrayList<>(BATCH_SIZE);
+        for (long i = 0; i < count; i++) {
+            batch.add(next(first + i));
+            if (batch.size() == BATCH_SIZE) {
+                store.addAll(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            store.addAll(batch);
+        }
+        store.sync();
+    }
+
+    /**
+     * Make sure a catalog file with exactly count generated products exists,
+     * writing it if it is missing or has a different size
+     * @param path location of the product file
+     * @param count number of products
+     * @param seed seed of the catalog
+     * @throws IOException if the file cannot be written
+     */
+    public static void ensureCatalog(String path, long count, long seed) throws IOException {
+        if (Files.exists(Paths.get(path))) {
+            try (ProductStore store = ProductStore.openWithoutIndexes(path, false)) {
+                if (store.getRecordCount() == count) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not a current product file; written again below
+            }
+            Files.delete(Paths.get(path));
+        }
+        try (ProductStore store = ProductStore.open(path, true)) {
+            new ProductGenerator(seed).fill(store, count);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java ProductGenerator count [products.dat] [--seed n]");
+            System.exit(2);
+        }
+        long count = Long.parseLong(args[0]);
+        String target = "products.dat";
+        long seed = 42;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                target = args[i];
+            }
+        }
+        try (ProductStore store = ProductStore.open(target, true, ProductStore.StorageMode.configured())) {
+            long start = System.nanoTime();
+            new ProductGenerator(seed).fill(store, count);
+            System.out.printf("Added %,d products to %s in %.1f s (%,d records in all)%n",
+                    count, target, (System.nanoTime() - start) / 1e9, store.getRecordCount());
+        } catch (IOException e) {
+            System.err.println("Generation failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Persistent open-addressing hash table (products.idx) from Product ID to record
+ * number. Slots hold the padded ID bytes, how many records were written with the
+ * ID and the newest of those record numbers. Collisions are resolved by linear
+ * probing, so a lookup touches one or two pages of the mapped table no matter how
+ * big the catalog is.
+ *
+ * The header remembers how many records of the data file have been indexed, which
+ * lets a stale index catch up instead of being rebuilt from scratch, and how many
+ * times an ID was written to a second record, which tells whether the newest
+ * record of an ID is also the only one. Several
+ * processes may map the same file; ProductStore only changes it while holding
+ * the AppendLock.
+ *
+ * Growing or resetting the table builds a new file and moves it over the old
+ * one. The old file is then marked replaced in its header, so a process still
+ * mapping it sees that with a plain memory read and reloads the path, rather
+ * than reading or writing an orphaned table.
+ */
+public class ProductIdIndex implements Closeable {
+    private static final int MAGIC = 0x50494458; // "PIDX"
+    // version 2 counts shadowed IDs, version 3 marks replaced files and version 4
+    // counts the records of each ID; older indexes are rebuilt
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 40;
+    private static final int SLOT_SIZE = 16;
+    private static final int MIN_CAPACITY = 1024;
+    // keeps the whole table inside a single mapping
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private static final int CAPACITY_POSITION = 8;
+    private static final int SIZE_POSITION = 12;
+    private static final int COVERED_POSITION = 16;
+    private static final int SHADOWED_POSITION = 24;
+    private static final int REPLACED_POSITION = 32;
+    // within a slot: the ID bytes, an unsigned short record count, the record number
+    private static final int COUNT_OFFSET = Product.ID_LENGTH;
+    private static final int RECORD_OFFSET = 8;
+    private static final int MAX_COUNT = 0xFFFF;
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer table;
+    private int capacity;
+    private int size;
+    private final byte[] key = new byte[Product.ID_LENGTH];
+    private final ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+
+    private ProductIdIndex(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Open the index for a store, building it if it is missing or unreadable
+     * @param path location of the index file
+     * @param store store the index describes
+     * @return an index covering every record currently in the store
+     * @throws IOException if the index cannot be read or written
+     */
+    public static ProductIdIndex open(String path, ProductStore store) throws IOException {
+        ProductIdIndex index = new ProductIdIndex(Paths.get(path));
+        if (!index.load()) {
+            index.reset(MIN_CAPACITY);
+        }
+        index.catchUp(store);
+        return index;
+    }
+
+    /**
+     * @return true if the mapped file has been grown, reset or deleted by another
+     * index on the same path, so reload must be called before using it again
+     */
+    public synchronized boolean isReplaced() {
+        return table.getLong(REPLACED_POSITION) != 0;
+    }
+
+    /**
+     * Map the file now at the path, or start an empty table if there is none. The
+     * caller holds the AppendLock and brings the index up to date afterwards.
+     * @throws IOException if the file cannot be read or written
+     */
+    public synchronized void reload() throws IOException {
+        channel.close();
+        if (!load()) {
+            table = null;
+            reset(MIN_CAPACITY);
+        }
+    }
+
+    /**
+     * Mark the file replaced before it is deleted, so other processes mapping it
+     * reload the path instead of using it. The caller holds the AppendLock.
+     */
+    public synchronized void retire() {
+        table.putLong(REPLACED_POSITION, 1);
+    }
+
+    /**
+     * Bring the index up to date with the store. Records appended since the index
+     * was last written are added; if the store shrank the index is rebuilt.
+     * @param store store the index describes
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void catchUp(ProductStore store) throws IOException {
+        long records = store.getRecordCount();
+        long covered = getCoveredRecords();
+        if (covered > records) {
+            reset(capacity);
+            covered = 0;
+        }
+        for (long recordNo = covered; recordNo < records; recordNo++) {
+            put(store.read(recordNo).getID(), recordNo);
+        }
+    }
+
+    /**
+     * Throw away all entries and rebuild from the store
+     * @param store store the index describes
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void rebuild(ProductStore store) throws IOException {
+        reset(capacity);
+        catchUp(store);
+    }
+
+    /**
+     * Look up the record holding an ID
+     * @param id product ID, surrounding whitespace is ignored
+     * @return the record number, or -1 if the ID is not indexed
+     */
+    public synchronized long get(String id) {
+        int offset = find(id);
+        return offset < 0 ? -1 : table.getLong(offset + RECORD_OFFSET) - 1;
+    }
+
+    /**
+     * Count the records an ID was written to
+     * @param id product ID, surrounding whitespace is ignored
+     * @return number of records put with the ID, deleted ones included, or 0 if the
+     * ID is not indexed; stops growing at 65535
+     */
+    public synchronized int count(String id) {
+        int offset = find(id);
+        return offset < 0 ? 0 : table.getChar(offset + COUNT_OFFSET);
+    }
+
+    /**
+     * Map an ID to a record. A repeated ID points at the newest record.
+     * @param id product ID
+     * @param recordNo record the ID was written to
+     * @throws IOException if the table has to grow and cannot be rewritten
+     */
+    public synchronized void put(String id, long recordNo) throws IOException {
+        // another process sharing the file may have added entries since we last looked
+        size = table.getInt(SIZE_POSITION);
+        if ((size + 1) * 2L > capacity) {
+            grow();
+        }
+        setKey(id);
+        insert(recordNo);
+        if (recordNo + 1 > getCoveredRecords()) {
+            table.putLong(COVERED_POSITION, recordNo + 1);
+        }
+    }
+
+    public synchronized long getCoveredRecords() {
+        return table.getLong(COVERED_POSITION);
+    }
+
+    /**
+     * @return number of times an indexed ID was put for another record, hiding the
+     * older one; zero means every ID is on at most one record
+     */
+    public synchronized long getShadowedCount() {
+        return table.getLong(SHADOWED_POSITION);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        table.force();
+        channel.close();
+    }
+
+    private boolean load() throws IOException {
+        if (!Files.exists(path) || Files.size(path) < HEADER_SIZE) {
+            return false;
+        }
+        map(FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        int storedCapacity = table.getInt(CAPACITY_POSITION);
+        boolean valid = table.getInt(0) == MAGIC
+                && table.getInt(4) == VERSION
+                && table.getLong(REPLACED_POSITION) == 0
+                && Integer.bitCount(storedCapacity) == 1
+                && channel.size() == HEADER_SIZE + (long) storedCapacity * SLOT_SIZE;
+        if (!valid) {
+            channel.close();
+            return false;
+        }
+        capacity = storedCapacity;
+        size = table.getInt(SIZE_POSITION);
+        return true;
+    }
+
+    // Starts an empty table in a side file and swaps it in
+    private void reset(int newCapacity) throws IOException {
+        Path fresh = Paths.get(path + ".tmp");
+        Files.deleteIfExists(fresh);
+        MappedByteBuffer oldTable = table;
+        if (channel != null) {
+            channel.close();
+        }
+        map(create(fresh, newCapacity));
+        capacity = newCapacity;
+        size = 0;
+        replace(fresh, oldTable);
+    }
+
+    private static FileChannel create(Path file, int capacity) throws IOException {
+        FileChannel created = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(CAPACITY_POSITION, capacity);
+        // writing the last byte sizes the file; the slots read back as zero (empty)
+        created.write(header, 0);
+        created.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) capacity * SLOT_SIZE - 1);
+        return created;
+    }
+
+    private void map(FileChannel opened) throws IOException {
+        channel = opened;
+        table = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+
+    // Doubles the table into a side file and swaps it in, so a crash part way
+    // through leaves the old index intact.
+    private void grow() throws IOException {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IOException("Product ID index is full (" + size + " entries)");
+        }
+        Path grown = Paths.get(path + ".tmp");
+        Files.deleteIfExists(grown);
+        MappedByteBuffer oldTable = table;
+        int oldCapacity = capacity;
+        long covered = getCoveredRecords();
+        long shadowed = getShadowedCount();
+
+        channel.close();
+        map(create(grown, oldCapacity * 2));
+        capacity = oldCapacity * 2;
+        size = 0;
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int offset = slotOffset(slot);
+            long stored = oldTable.getLong(offset + RECORD_OFFSET);
+            if (stored != 0) {
+                oldTable.get(offset, key);
+                insert(stored - 1);
+                table.putChar(slotOffset(slot(key)) + COUNT_OFFSET, oldTable.getChar(offset + COUNT_OFFSET));
+            }
+        }
+        table.putLong(COVERED_POSITION, covered);
+        table.putLong(SHADOWED_POSITION, shadowed);
+        replace(grown, oldTable);
+    }
+
+    // Moves a new table file over the path, then tells processes still mapping the
+    // old file that it is gone; the old mapping stays valid after its channel closes
+    private void replace(Path file, MappedByteBuffer oldTable) throws IOException {
+        table.force();
+        Files.move(file, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (oldTable != null) {
+            oldTable.putLong(REPLACED_POSITION, 1);
+        }
+    }
+
+    // Slot offset of an ID, or -1 if it is not indexed
+    private int find(String id) {
+        setKey(id);
+        int offset = slotOffset(slot(key));
+        return table.getLong(offset + RECORD_OFFSET) == 0 ? -1 : offset;
+    }
+
+    // The slot holding the key, or the empty slot it would go in
+    private int slot(byte[] bytes) {
+        int mask = capacity - 1;
+        int slot = hash(bytes) & mask;
+        while (table.getLong(slotOffset(slot) + RECORD_OFFSET) != 0 && !keyMatches(slot)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(long recordNo) {
+        int offset = slotOffset(slot(key));
+        long stored = table.getLong(offset + RECORD_OFFSET);
+        int count = table.getChar(offset + COUNT_OFFSET);
+        if (stored == 0) {
+            size++;
+            table.putInt(SIZE_POSITION, size);
+            count = 1;
+        } else if (stored != recordNo + 1) {
+            table.putLong(SHADOWED_POSITION, table.getLong(SHADOWED_POSITION) + 1);
+            count = Math.min(MAX_COUNT, count + 1);
+        }
+        table.put(offset, key);
+        table.putChar(offset + COUNT_OFFSET, (char) count);
+        // record numbers are stored off by one so that zero marks an empty slot
+        table.putLong(offset + RECORD_OFFSET, recordNo + 1);
+    }
+
+    private void setKey(String id) {
+        ProductRecord.putField(keyBuffer, 0, id.trim(), Product.ID_LENGTH);
+    }
+
+    private boolean keyMatches(int slot) {
+        int offset = slotOffset(slot);
+        for (int i = 0; i < key.length; i++) {
+            if (table.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    // FNV-1a followed by a final mix so that sequential IDs spread across the table
+    private static int hash(byte[] bytes) {
+        int h = 0x811C9DC5;
+        for (byte b : bytes) {
+            h = (h ^ (b & 0xFF)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+}
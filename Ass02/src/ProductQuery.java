@@ -0,0 +1,772 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Structured product query such as {@code name:mouse cost<20 id:1*}, parsed into a
+ * tree of predicates that are checked against the encoded records.
+ *
+ *   name:text  desc:text      field contains text, ignoring case
+ *   name:text*                field starts with text
+ *   id:ABC                    exact ID, found with the ID hash index
+ *   id:AB*                    ID starts with AB
+ *   cost<20  cost<=20  cost>5  cost>=5  cost=9.99  cost:5..20
+ *   text                      name, description or ID contains text
+ *   a b    a OR b    ( )      both, either, grouping
+ *   name:"usb mouse"          values with spaces are quoted
+ *
+ * plan() asks every predicate what its index (ID hash, trigram or cost index)
+ * would return and drives the query from the smallest candidate list. The whole
+ * tree is then pushed down into the byte-level scan of those candidates, so only
+ * matching records are ever decoded. Without a usable index every record is
+ * scanned. A query that reads a single field, such as {@code cost<20} or
+ * {@code name:usb OR name:hub}, is checked on that field alone, read from its
+ * column file when the store is COLUMNAR. A parsed query memoizes its trigram
+ * lookups, so plan it once per search.
+ */
+public abstract class ProductQuery implements ParallelScanner.SlotMatcher {
+    // share of the records a predicate is assumed to keep when no index can say
+    private static final double CONTAINS_SELECTIVITY = 0.1;
+    private static final double PREFIX_SELECTIVITY = 0.05;
+    // past this share of the records a sequential scan beats visiting candidates
+    private static final double MAX_INDEX_SHARE = 0.25;
+    private static final Pattern STRUCTURED = Pattern.compile(
+            ".*((?i:\\b(name|desc|description|id)\\s*:|\\bcost\\s*[:<>=])|\\sOR\\s).*");
+    // lets "cost < 20" and "name: mouse" be written with spaces
+    private static final Pattern SPACED_OPERATOR = Pattern.compile(
+            "(?i)\\b(name|desc|description|id|cost)\\s*([<>]=?|=|:)\\s*");
+
+    /**
+     * How an index would narrow a predicate down
+     */
+    private static class Access {
+        final String description;
+        final long estimate;
+        final IndexLookup lookup;
+
+        Access(String description, long estimate, IndexLookup lookup) {
+            this.description = description;
+            this.estimate = estimate;
+            this.lookup = lookup;
+        }
+    }
+
+    /**
+     * Fetches the candidate records of an access path
+     */
+    private interface IndexLookup {
+        int[] fetch() throws IOException;
+    }
+
+    /**
+     * The access path chosen for a query, its candidates and its estimated result size
+     */
+    public static class Plan {
+        private final ProductQuery query;
+        private final Access access;
+        private final List<String> considered;
+        private final long records;
+        private final long estimatedRows;
+
+        private Plan(ProductQuery query, Access access, List<String> considered, long records,
+                     long estimatedRows) {
+            this.query = query;
+            this.access = access;
+            this.considered = considered;
+            this.records = records;
+            this.estimatedRows = estimatedRows;
+        }
+
+        /**
+         * @return ascending record numbers to check, or null if every record has to be scanned
+         * @throws IOException if an index has to be brought up to date and cannot be written
+         */
+        public int[] candidates() throws IOException {
+            return access == null ? null : access.lookup.fetch();
+        }
+
+        public long getEstimatedRows() {
+            return estimatedRows;
+        }
+
+        /**
+         * @return a readable description of the plan
+         */
+        public String explain() {
+            StringBuilder text = new StringBuilder();
+            text.append("Query: ").append(query.describe()).append('\n');
+            if (access == null) {
+                text.append(String.format("Access: full scan of %,d records%n", records));
+            } else {
+                text.append(String.format("Access: %s, %,d candidate rows%n", access.description, access.estimate));
+            }
+            for (String line : considered) {
+                text.append("  considered ").append(line).append('\n');
+            }
+            ProductColumns.Column column = query.column();
+            text.append("Filter: whole query checked on the ")
+                    .append(column == null ? "encoded record" : column.name().toLowerCase(Locale.ROOT) + " field alone")
+                    .append(" of each ").append(access == null ? "record" : "candidate").append('\n');
+            text.append(String.format("Estimated rows: %,d of %,d", estimatedRows, records));
+            return text.toString();
+        }
+
+        @Override
+        public String toString() {
+            return explain();
+        }
+    }
+
+    /**
+     * Check whether text uses the query syntax rather than being a plain search term
+     * @param text text typed into the search box
+     * @return true if it names a field, compares the cost or uses OR
+     */
+    public static boolean isStructured(String text) {
+        return STRUCTURED.matcher(text).matches();
+    }
+
+    /**
+     * Parse a query
+     * @param text query text
+     * @return the predicate tree
+     * @throws IllegalArgumentException if the text is not a valid query
+     */
+    public static ProductQuery parse(String text) {
+        Parser parser = new Parser(tokenize(joinOperators(text)));
+        ProductQuery query = parser.or();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected " + parser.tokens.get(parser.position));
+        }
+        return query;
+    }
+
+    /**
+     * Choose how to run the query against the current contents of a store
+     * @param store store to query
+     * @return the plan
+     * @throws IOException if an index has to be brought up to date and cannot be written
+     */
+    public Plan plan(ProductStore store) throws IOException {
+        long records = store.getRecordCount();
+        List<String> considered = new ArrayList<>();
+        Access access = access(store, considered);
+        if (access != null && access.estimate > records * MAX_INDEX_SHARE) {
+            considered.add(String.format("%s not used: %,d rows is too many to visit one by one",
+                    access.description, access.estimate));
+            access = null;
+        }
+        long estimate = Math.round(estimate(store));
+        if (access != null) {
+            estimate = Math.min(estimate, access.estimate);
+        }
+        return new Plan(this, access, considered, records, Math.min(estimate, records));
+    }
+
+    /**
+     * @return the query in a normalized, readable form
+     */
+    public abstract String describe();
+
+    @Override
+    public String toString() {
+        return describe();
+    }
+
+    /**
+     * @return the one field the query reads, or null if it reads more than one. A
+     * query on one field can be checked against that field's column alone, given
+     * the offset its record's slot would start at.
+     */
+    public abstract ProductColumns.Column column();
+
+    // Best index access path for this predicate, or null if none applies
+    abstract Access access(ProductStore store, List<String> considered) throws IOException;
+
+    // Estimated number of matching records
+    abstract double estimate(ProductStore store) throws IOException;
+
+    // Relative cost of evaluating this predicate on one record, cheapest first
+    abstract int evaluationCost();
+
+    /**
+     * Every child matches
+     */
+    private static class And extends ProductQuery {
+        private final ProductQuery[] children;
+
+        And(List<ProductQuery> children) {
+            this.children = children.toArray(new ProductQuery[0]);
+            // cheapest checks first so most records are rejected early
+            Arrays.sort(this.children, Comparator.comparingInt(ProductQuery::evaluationCost));
+        }
+
+        @Override
+        public boolean matches(ByteBuffer buffer, int offset, byte[] scratch) {
+            for (ProductQuery child : children) {
+                if (!child.matches(buffer, offset, scratch)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        Access access(ProductStore store, List<String> considered) throws IOException {
+            Access best = null;
+            for (ProductQuery child : children) {
+                Access access = child.access(store, new ArrayList<>());
+                considered.add(child.describe() + ": " + (access == null ? "no index"
+                        : String.format("%s, %,d rows", access.description, access.estimate)));
+                if (access != null && (best == null || access.estimate < best.estimate)) {
+                    best = access;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        double estimate(ProductStore store) throws IOException {
+            double records = Math.max(1, store.getRecordCount());
+            double estimate = records;
+            for (ProductQuery child : children) {
+                estimate *= child.estimate(store) / records;
+            }
+            return estimate;
+        }
+
+        @Override
+        int evaluationCost() {
+            return 3;
+        }
+
+        @Override
+        public ProductColumns.Column column() {
+            return commonColumn(children);
+        }
+
+        @Override
+        public String describe() {
+            return join("AND", children);
+        }
+    }
+
+    /**
+     * At least one child matches
+     */
+    private static class Or extends ProductQuery {
+        private final ProductQuery[] children;
+
+        Or(List<ProductQuery> children) {
+            this.children = children.toArray(new ProductQuery[0]);
+        }
+
+        @Override
+        public boolean matches(ByteBuffer buffer, int offset, byte[] scratch) {
+            for (ProductQuery child : children) {
+                if (child.matches(buffer, offset, scratch)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Usable only if every branch has an index; the candidates are their union
+        @Override
+        Access access(ProductStore store, List<String> considered) throws IOException {
+            Access[] branches = new Access[children.length];
+            long estimate = 0;
+            for (int i = 0; i < children.length; i++) {
+                branches[i] = children[i].access(store, considered);
+                if (branches[i] == null) {
+                    considered.add(children[i].describe() + ": no index, so the OR needs a full scan");
+                    return null;
+                }
+                estimate += branches[i].estimate;
+            }
+            return new Access("union of " + branches.length + " index lookups", estimate, () -> {
+                int[] union = new int[0];
+                for (Access branch : branches) {
+                    union = union(union, branch.lookup.fetch());
+                }
+                return union;
+            });
+        }
+
+        @Override
+        double estimate(ProductStore store) throws IOException {
+            double estimate = 0;
+            for (ProductQuery child : children) {
+                estimate += child.estimate(store);
+            }
+            return Math.min(estimate, store.getRecordCount());
+        }
+
+        @Override
+        int evaluationCost() {
+            return 3;
+        }
+
+        @Override
+        public ProductColumns.Column column() {
+            return commonColumn(children);
+        }
+
+        @Override
+        public String describe() {
+            return join("OR", children);
+        }
+    }
+
+    /**
+     * A text field, or any text field, contains or starts with a value
+     */
+    private static class TextMatch extends ProductQuery {
+        private static final ProductColumns.Column[] TEXT_COLUMNS = {
+                ProductColumns.Column.NAME, ProductColumns.Column.DESCRIPTION, ProductColumns.Column.ID
+        };
+
+        private final ProductColumns.Column[] columns;
+        private final String value;
+        private final boolean prefix;
+        private final RecordMatcher matcher;
+        private final byte[] folded;
+        private int[] trigramCandidates;
+        private boolean lookedUp;
+
+        TextMatch(ProductColumns.Column column, String value, boolean prefix) {
+            this.columns = column == null ? TEXT_COLUMNS : new ProductColumns.Column[]{column};
+            this.value = value.toLowerCase(Locale.ROOT);
+            this.prefix = prefix;
+            // null for non-ASCII values, which are compared as decoded Strings instead
+            this.matcher = RecordMatcher.forTerm(this.value);
+            this.folded = this.value.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public boolean matches(ByteBuffer buffer, int offset, byte[] scratch) {
+            for (ProductColumns.Column column : columns) {
+                int position = offset + column.fieldOffset;
+                boolean found;
+                if (matcher == null) {
+                    String field = ProductRecord.getField(buffer, position, column.width, scratch)
+                            .toLowerCase(Locale.ROOT);
+                    found = prefix ? field.startsWith(value) : field.contains(value);
+                } else if (prefix) {
+                    found = startsWith(buffer, position, column.width);
+                } else {
+                    found = matcher.matchesField(buffer, position, column.width, scratch);
+                }
+                if (found) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean startsWith(ByteBuffer buffer, int position, int width) {
+            if (folded.length > width) {
+                return false;
+            }
+            for (int i = 0; i < folded.length; i++) {
+                byte b = buffer.get(position + i);
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != folded[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // The trigram index covers all three fields, so its list is a superset here too
+        private int[] trigramCandidates(ProductStore store) {
+            if (!lookedUp) {
+                trigramCandidates = store.candidates(value);
+                lookedUp = true;
+            }
+            return trigramCandidates;
+        }
+
+        @Override
+        Access access(ProductStore store, List<String> considered) {
+            int[] candidates = trigramCandidates(store);
+            if (candidates == null) {
+                return null;
+            }
+            return new Access("trigram index on \"" + value + "\"", candidates.length, () -> candidates);
+        }
+
+        @Override
+        double estimate(ProductStore store) {
+            int[] candidates = trigramCandidates(store);
+            if (candidates != null) {
+                return candidates.length;
+            }
+            return store.getRecordCount() * (prefix ? PREFIX_SELECTIVITY : CONTAINS_SELECTIVITY);
+        }
+
+        @Override
+        int evaluationCost() {
+            return 2;
+        }
+
+        @Override
+        public ProductColumns.Column column() {
+            return columns.length == 1 ? columns[0] : null;
+        }
+
+        @Override
+        public String describe() {
+            String field = columns.length > 1 ? "any field" : columns[0].name().toLowerCase(Locale.ROOT);
+            return field + (prefix ? " starts with \"" : " contains \"") + value + "\"";
+        }
+    }
+
+    /**
+     * The ID is exactly a value, as typed
+     */
+    private static class IdEquals extends ProductQuery {
+        private final String id;
+        private final byte[] encoded;
+
+        IdEquals(String id) {
+            this.id = id;
+            this.encoded = id.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean matches(ByteBuffer buffer, int offset, byte[] scratch) {
+            if (encoded.length > Product.ID_LENGTH) {
+                return false;
+            }
+            int position = offset + ProductRecord.ID_OFFSET;
+            for (int i = 0; i < Product.ID_LENGTH; i++) {
+                byte expected = i < encoded.length ? encoded[i] : (byte) ' ';
+                if (buffer.get(position + i) != expected) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Matches every live record with the ID, as the scan does. The hash index
+        // holds only the newest record of an ID, so it answers alone only while no
+        // ID is on two records; otherwise the trigram index narrows the scan.
+        @Override
+        Access access(ProductStore store, List<String> considered) throws IOException {
+            if (!store.hasDuplicateIds()) {
+                long recordNo = store.findRecordById(id);
+                int[] candidates = recordNo < 0 ? new int[0] : new int[]{(int) recordNo};
+                return new Access("ID hash index", candidates.length, () -> candidates);
+            }
+            considered.add("ID hash index not used: some IDs are on more than one record");
+            int[] candidates = encoded.length > Product.ID_LENGTH ? new int[0]
+                    : store.candidates(id.toLowerCase(Locale.ROOT));
+            if (candidates == null) {
+                return null;
+            }
+            return new Access("trigram index on \"" + id + "\"", candidates.length, () -> candidates);
+        }
+
+        @Override
+        double estimate(ProductStore store) throws IOException {
+            return store.countRecordsWithId(id);
+        }
+
+        @Override
+        int evaluationCost() {
+            return 1;
+        }
+
+        @Override
+        public ProductColumns.Column column() {
+            return ProductColumns.Column.ID;
+        }
+
+        @Override
+        public String describe() {
+            return "id = \"" + id + "\"";
+        }
+    }
+
+    /**
+     * The cost in cents lies in a closed range
+     */
+    private static class CostRange extends ProductQuery {
+        private final long min;
+        private final long max;
+        private final String text;
+
+        CostRange(long min, long max, String text) {
+            this.min = min;
+            this.max = max;
+            this.text = text;
+        }
+
+        @Override
+        public boolean matches(ByteBuffer buffer, int offset, byte[] scratch) {
+            long cost = buffer.getLong(offset + ProductRecord.COST_OFFSET);
+            return cost >= min && cost <= max;
+        }
+
+        @Override
+        Access access(ProductStore store, List<String> considered) {
+            long count = store.countCostRange(min, max);
+            return new Access("cost index", count, () -> {
+                long[] recordNos = store.costRange(min, max);
+                Arrays.sort(recordNos);
+                int[] candidates = new int[recordNos.length];
+                for (int i = 0; i < recordNos.length; i++) {
+                    candidates[i] = (int) recordNos[i];
+                }
+                return candidates;
+            });
+        }
+
+        @Override
+        double estimate(ProductStore store) {
+            return store.countCostRange(min, max);
+        }
+
+        @Override
+        int evaluationCost() {
+            return 0;
+        }
+
+        @Override
+        public ProductColumns.Column column() {
+            return ProductColumns.Column.COST;
+        }
+
+        @Override
+        public String describe() {
+            return text;
+        }
+    }
+
+    /**
+     * Recursive descent over the tokens: or := and ("OR" and)*, and := term+,
+     * term := "(" or ")" | predicate
+     */
+    private static class Parser {
+        final List<String> tokens;
+        int position;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        ProductQuery or() {
+            List<ProductQuery> branches = new ArrayList<>();
+            branches.add(and());
+            while (position < tokens.size() && tokens.get(position).equals("OR")) {
+                position++;
+                branches.add(and());
+            }
+            return branches.size() == 1 ? branches.get(0) : new Or(branches);
+        }
+
+        ProductQuery and() {
+            List<ProductQuery> terms = new ArrayList<>();
+            while (position < tokens.size() && !tokens.get(position).equals("OR")
+                    && !tokens.get(position).equals(")")) {
+                terms.add(term());
+            }
+            if (terms.isEmpty()) {
+                throw new IllegalArgumentException(position < tokens.size()
+                        ? "Expected a search term before " + tokens.get(position)
+                        : "Expected a search term");
+            }
+            return terms.size() == 1 ? terms.get(0) : new And(terms);
+        }
+
+        ProductQuery term() {
+            String token = tokens.get(position++);
+            if (!token.equals("(")) {
+                return predicate(token);
+            }
+            ProductQuery group = or();
+            if (position >= tokens.size() || !tokens.get(position).equals(")")) {
+                throw new IllegalArgumentException("Missing )");
+            }
+            position++;
+            return group;
+        }
+    }
+
+    private static ProductQuery predicate(String token) {
+        String lower = token.toLowerCase(Locale.ROOT);
+        if (lower.startsWith("cost") && lower.length() > 4 && "<>=:".indexOf(lower.charAt(4)) >= 0) {
+            return cost(token);
+        }
+        int colon = token.indexOf(':');
+        if (colon <= 0 || token.startsWith("\"")) {
+            if (unquote(token).isEmpty()) {
+                throw new IllegalArgumentException("Empty search term");
+            }
+            return new TextMatch(null, unquote(token), false);
+        }
+        String field = lower.substring(0, colon);
+        String value = token.substring(colon + 1);
+        boolean prefix = value.endsWith("*") && !value.endsWith("\"");
+        if (prefix) {
+            value = value.substring(0, value.length() - 1);
+        }
+        value = unquote(value);
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("Missing value in " + token);
+        }
+        switch (field) {
+            case "name":
+                return new TextMatch(ProductColumns.Column.NAME, value, prefix);
+            case "desc":
+            case "description":
+                return new TextMatch(ProductColumns.Column.DESCRIPTION, value, prefix);
+            case "id":
+                return prefix ? new TextMatch(ProductColumns.Column.ID, value, true) : new IdEquals(value);
+            default:
+                throw new IllegalArgumentException("Unknown field " + field
+                        + " (use name, desc, id or cost)");
+        }
+    }
+
+    // Costs are whole cents, so each comparison becomes an inclusive range of cents
+    private static ProductQuery cost(String token) {
+        String rest = token.substring(4);
+        String operator = rest.startsWith("<=") || rest.startsWith(">=") ? rest.substring(0, 2) : rest.substring(0, 1);
+        String operand = rest.substring(operator.length());
+        String text = "cost " + operator + " " + operand;
+        if (operator.equals(":") && operand.contains("..")) {
+            int dots = operand.indexOf("..");
+            return new CostRange(Product.ceilCents(number(operand.substring(0, dots), token)),
+                    Product.floorCents(number(operand.substring(dots + 2), token)), "cost in [" + operand + "]");
+        }
+        double value = number(operand, token);
+        switch (operator) {
+            case "<":
+                return new CostRange(-Product.MAX_CENTS, Product.ceilCents(value) - 1, text);
+            case "<=":
+                return new CostRange(-Product.MAX_CENTS, Product.floorCents(value), text);
+            case ">":
+                return new CostRange(Product.floorCents(value) + 1, Product.MAX_CENTS, text);
+            case ">=":
+                return new CostRange(Product.ceilCents(value), Product.MAX_CENTS, text);
+            default:
+                return new CostRange(Product.ceilCents(value), Product.floorCents(value), "cost = " + operand);
+        }
+    }
+
+    private static double number(String text, String token) {
+        try {
+            double value = Double.parseDouble(text.trim().replace("$", ""));
+            if (Double.isNaN(value)) {
+                throw new NumberFormatException();
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cost in " + token);
+        }
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    // Splits on whitespace outside double quotes; parentheses are tokens of their own
+    // Closes up spaced operators such as "cost < 20", leaving quoted values as typed
+    private static String joinOperators(String text) {
+        String[] parts = text.split("\"", -1);
+        StringBuilder joined = new StringBuilder(text.length());
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                joined.append('"');
+            }
+            // even parts are outside quotes
+            joined.append(i % 2 == 0 ? SPACED_OPERATOR.matcher(parts[i]).replaceAll("$1$2") : parts[i]);
+        }
+        return joined.toString();
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                token.append(c);
+            } else if (!quoted && (Character.isWhitespace(c) || c == '(' || c == ')')) {
+                if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+                if (c != ' ' && !Character.isWhitespace(c)) {
+                    tokens.add(String.valueOf(c));
+                }
+            } else {
+                token.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Missing closing quote");
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    // The field every child reads, or null if they read different ones
+    private static ProductColumns.Column commonColumn(ProductQuery[] children) {
+        ProductColumns.Column common = children[0].column();
+        for (ProductQuery child : children) {
+            if (child.column() != common) {
+                return null;
+            }
+        }
+        return common;
+    }
+
+    private static String join(String operator, ProductQuery[] children) {
+        StringBuilder text = new StringBuilder(operator).append('(');
+        for (int i = 0; i < children.length; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(children[i].describe());
+        }
+        return text.append(')').toString();
+    }
+
+    // Merges two ascending lists, dropping duplicates
+    private static int[] union(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j >= b.length || (i < a.length && a[i] <= b[j])) {
+                next = a[i++];
+            } else {
+                next = b[j++];
+            }
+            if (size == 0 || result[size - 1] != next) {
+                result[size++] = next;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+}
@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/**
+ * On-disk layout of products.dat. The file starts with a fixed header followed by
+ * records that are exactly RECORD_SIZE bytes, so record N lives at
+ * HEADER_SIZE + N * RECORD_SIZE.
+ *
+ * Header: magic (4), version (2), record size (2), record count (8), generation (8),
+ * synced count (8), deleted count (8), rewrite count (8), rewritten-from (8),
+ * retired (8). The generation goes up on every write so that caches built from the
+ * file can tell when they are out of date. The synced count is the commit marker:
+ * every record below it was forced to disk before it was written, so after a crash
+ * only the records between it and the record count need checking.
+ *
+ * Records are overwritten in place by updates and deletes. The rewrite count goes up
+ * with each one so indexes know their contents may be stale, and rewritten-from
+ * holds one more than the lowest record rewritten since the last sync (0 for none),
+ * so recovery also checks those slots. Retired is set on a file that compaction has
+ * replaced, telling readers still mapping it to reopen the path.
+ *
+ * Record: name (35), description (75), ID (6) as space padded UTF-8, the cost in
+ * whole cents (8, since version 3; a double in dollars before), flags (4, DELETED
+ * marks a tombstone) and a CRC32C of everything before it, so a torn record is
+ * detected instead of being read as garbage.
+ */
+public class ProductRecord {
+    public static final int MAGIC = 0x50524F44; // "PROD"
+    public static final short VERSION = 3;
+    public static final int HEADER_SIZE = 64;
+
+    public static final int NAME_OFFSET = 0;
+    public static final int DESCRIPTION_OFFSET = NAME_OFFSET + Product.NAME_LENGTH;
+    public static final int ID_OFFSET = DESCRIPTION_OFFSET + Product.DESCRIPTION_LENGTH;
+    public static final int COST_OFFSET = ID_OFFSET + Product.ID_LENGTH;
+    public static final int FLAGS_OFFSET = COST_OFFSET + Long.BYTES;
+    public static final int CHECKSUM_OFFSET = FLAGS_OFFSET + Integer.BYTES;
+    public static final int RECORD_SIZE = CHECKSUM_OFFSET + Integer.BYTES;
+
+    // flag bits of a record
+    public static final int DELETED = 1;
+
+    private static final int MAGIC_POSITION = 0;
+    public static final int VERSION_POSITION = 4;
+    public static final int RECORD_SIZE_POSITION = 6;
+    public static final int RECORD_COUNT_POSITION = 8;
+    public static final int GENERATION_POSITION = 16;
+    public static final int SYNCED_POSITION = 24;
+    public static final int DELETED_COUNT_POSITION = 32;
+    public static final int REWRITE_COUNT_POSITION = 40;
+    public static final int REWRITTEN_FROM_POSITION = 48;
+    public static final int RETIRED_POSITION = 56;
+
+    private ProductRecord() {
+    }
+
+    /**
+     * Build a header for a file holding the given number of records
+     * @param recordCount number of committed records
+     * @param generation write counter of the file
+     * @param syncedCount number of leading records known to be on disk
+     * @param deletedCount number of records marked DELETED
+     * @param rewriteCount number of in-place rewrites and compactions so far
+     * @param rewrittenFrom lowest record rewritten since the last sync, or -1 for none
+     * @return a HEADER_SIZE buffer ready to be written at position 0
+     */
+    public static ByteBuffer newHeader(long recordCount, long generation, long syncedCount,
+                                       long deletedCount, long rewriteCount, long rewrittenFrom) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC_POSITION, MAGIC);
+        header.putShort(VERSION_POSITION, VERSION);
+        header.putShort(RECORD_SIZE_POSITION, (short) RECORD_SIZE);
+        header.putLong(RECORD_COUNT_POSITION, recordCount);
+        header.putLong(GENERATION_POSITION, generation);
+        header.putLong(SYNCED_POSITION, syncedCount);
+        header.putLong(DELETED_COUNT_POSITION, deletedCount);
+        header.putLong(REWRITE_COUNT_POSITION, rewriteCount);
+        header.putLong(REWRITTEN_FROM_POSITION, rewrittenFrom + 1);
+        return header;
+    }
+
+    /**
+     * Check a header read from disk and return its record count
+     * @param header HEADER_SIZE bytes read from position 0
+     * @return the record count stored in the header
+     * @throws IOException if the header is not a supported product file header
+     */
+    public static long checkHeader(ByteBuffer header) throws IOException {
+        if (header.getInt(MAGIC_POSITION) != MAGIC) {
+            throw new IOException("Not a fixed-width product file (run LegacyProductMigrator on older files)");
+        }
+        short version = header.getShort(VERSION_POSITION);
+        if (version != VERSION) {
+            throw new IOException("Unsupported product file version " + version);
+        }
+        int recordSize = header.getShort(RECORD_SIZE_POSITION);
+        if (recordSize != RECORD_SIZE) {
+            throw new IOException("Unexpected record size " + recordSize + ", expected " + RECORD_SIZE);
+        }
+        return header.getLong(RECORD_COUNT_POSITION);
+    }
+
+    /**
+     * @param header a header that passed checkHeader
+     * @return the write counter stored in the header
+     */
+    public static long generation(ByteBuffer header) {
+        return header.getLong(GENERATION_POSITION);
+    }
+
+    /**
+     * @param header a header that passed checkHeader
+     * @return the number of leading records that were forced to disk before the
+     * header was written
+     */
+    public static long syncedCount(ByteBuffer header) {
+        return header.getLong(SYNCED_POSITION);
+    }
+
+    /**
+     * @param header a header that passed checkHeader
+     * @return the number of records marked DELETED
+     */
+    public static long deletedCount(ByteBuffer header) {
+        return header.getLong(DELETED_COUNT_POSITION);
+    }
+
+    /**
+     * @param header a header that passed checkHeader
+     * @return the number of in-place rewrites and compactions the file has seen
+     */
+    public static long rewriteCount(ByteBuffer header) {
+        return header.getLong(REWRITE_COUNT_POSITION);
+    }
+
+    /**
+     * @param header a header that passed checkHeader
+     * @return the lowest record rewritten in place since the last sync, or -1 for none
+     */
+    public static long rewrittenFrom(ByteBuffer header) {
+        return header.getLong(REWRITTEN_FROM_POSITION) - 1;
+    }
+
+    /**
+     * @param header a header that passed checkHeader
+     * @return true if compaction has replaced the file at its path
+     */
+    public static boolean isRetired(ByteBuffer header) {
+        return header.getLong(RETIRED_POSITION) != 0;
+    }
+
+    /**
+     * Encode a product into its fixed-size slot
+     * @param product product to encode
+     * @param buffer destination buffer
+     * @param offset start of the slot within the buffer
+     */
+    public static void encode(Product product, ByteBuffer buffer, int offset) {
+        putField(buffer, offset + NAME_OFFSET, product.getName(), Product.NAME_LENGTH);
+        putField(buffer, offset + DESCRIPTION_OFFSET, product.getDescription(), Product.DESCRIPTION_LENGTH);
+        putField(buffer, offset + ID_OFFSET, product.getID(), Product.ID_LENGTH);
+        buffer.putLong(offset + COST_OFFSET, product.getCostCents());
+        buffer.putInt(offset + FLAGS_OFFSET, 0);
+        seal(buffer, offset);
+    }
+
+    /**
+     * @param buffer buffer holding the record
+     * @param offset start of the slot within the buffer
+     * @return true if the record is a tombstone left by a delete
+     */
+    public static boolean isDeleted(ByteBuffer buffer, int offset) {
+        return (buffer.getInt(offset + FLAGS_OFFSET) & DELETED) != 0;
+    }
+
+    /**
+     * Turn a slot into a tombstone, keeping its fields, and reseal it
+     * @param buffer writable buffer holding the record
+     * @param offset start of the slot within the buffer
+     */
+    public static void markDeleted(ByteBuffer buffer, int offset) {
+        buffer.putInt(offset + FLAGS_OFFSET, buffer.getInt(offset + FLAGS_OFFSET) | DELETED);
+        seal(buffer, offset);
+    }
+
+    /**
+     * Store the checksum of a slot whose other bytes are final
+     * @param buffer buffer holding the record
+     * @param offset start of the slot within the buffer
+     */
+    public static void seal(ByteBuffer buffer, int offset) {
+        buffer.putInt(offset + CHECKSUM_OFFSET, checksum(buffer, offset, new CRC32C()));
+    }
+
+    /**
+     * Check a slot against its stored checksum
+     * @param buffer buffer holding the record
+     * @param offset start of the slot within the buffer
+     * @param crc reusable checksum, reset before use
+     * @return true if the slot was written completely
+     */
+    public static boolean isIntact(ByteBuffer buffer, int offset, CRC32C crc) {
+        return buffer.getInt(offset + CHECKSUM_OFFSET) == checksum(buffer, offset, crc);
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, CRC32C crc) {
+        crc.reset();
+        crc.update(buffer.slice(offset, CHECKSUM_OFFSET));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Decode the slot at the given offset
+     * @param buffer buffer holding the record
+     * @param offset start of the slot within the buffer
+     * @param scratch reusable buffer of at least DESCRIPTION_LENGTH bytes
+     * @return the decoded product
+     */
+    public static Product decode(ByteBuffer buffer, int offset, byte[] scratch) {
+        String name = getField(buffer, offset + NAME_OFFSET, Product.NAME_LENGTH, scratch);
+        String description = getField(buffer, offset + DESCRIPTION_OFFSET, Product.DESCRIPTION_LENGTH, scratch);
+        String id = getField(buffer, offset + ID_OFFSET, Product.ID_LENGTH, scratch);
+        return Product.withCents(name, description, id, buffer.getLong(offset + COST_OFFSET));
+    }
+
+    /**
+     * Decode one space-padded text field
+     * @param buffer buffer holding the record
+     * @param position start of the field within the buffer
+     * @param width width of the field in bytes
+     * @param scratch buffer of at least width bytes
+     * @return the field with its padding removed
+     */
+    public static String getField(ByteBuffer buffer, int position, int width, byte[] scratch) {
+        buffer.get(position, scratch, 0, width);
+        int length = width;
+        while (length > 0 && scratch[length - 1] == ' ') {
+            length--;
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8).trim();
+    }
+
+    // Values longer than the slot are cut on a character boundary so a multibyte
+    // character is never split; shorter values are padded with spaces.
+    public static void putField(ByteBuffer buffer, int position, String value, int width) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, width);
+        while (length < bytes.length && length > 0 && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        buffer.put(position, bytes, 0, length);
+        for (int i = length; i < width; i++) {
+            buffer.put(position + i, (byte) ' ');
+        }
+    }
+}
@@ -0,0 +1,475 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Headless access to a product file: adding, looking up, searching and streaming
+ * products without any Swing code, so the same paths serve RandProductMaker,
+ * RandProductSearch, batch jobs and benchmarks. The service owns the store and
+ * everything layered on it: the page cache, the parallel scanner, the result
+ * cache with its keystroke refinement, and, when writable, the append queue
+ * that groups concurrent adds into one write and sync, and the background
+ * compactor.
+ *
+ * Settings come from system properties: product.storage, search.pagecache.mb,
+ * search.parallelism, search.cache.mb, product.append.batch, product.compact.share
+ * and product.compact.mbps.
+ * The page cache is off unless search.pagecache.mb is set. It only saves decoding
+ * when rows are materialized (and for non-ASCII terms); the byte scans behind
+ * searches read the mapping and never go through it.
+ */
+public class ProductService implements Closeable {
+    // records summarized by one task of a whole-catalog roll-up
+    private static final long SUMMARY_RANGE = 1 << 18;
+
+    private final ProductStore store;
+    private final ParallelScanner scanner;
+    private final QueryCache queryCache;
+    private final AppendQueue appends;
+    private final ProductCompactor compactor;
+
+    // hits of the last completed substring search, reused when the next term extends it
+    private String lastTerm;
+    private int[] lastHits;
+    private long lastGeneration;
+
+    /**
+     * What a streaming search found
+     */
+    public static class SearchResult {
+        private final String term;
+        private final int[] recordNos;
+        private final boolean complete;
+        private final boolean fromCache;
+        private final String plan;
+
+        SearchResult(String term, int[] recordNos, boolean complete, boolean fromCache, String plan) {
+            this.term = term;
+            this.recordNos = recordNos;
+            this.complete = complete;
+            this.fromCache = fromCache;
+            this.plan = plan;
+        }
+
+        /**
+         * @return the lowercased term of a substring search, or the query text
+         */
+        public String getTerm() {
+            return term;
+        }
+
+        /**
+         * @return ascending record numbers of the hits delivered so far
+         */
+        public int[] getRecordNos() {
+            return recordNos;
+        }
+
+        /**
+         * @return false if the listener stopped the search early
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        public boolean isFromCache() {
+            return fromCache;
+        }
+
+        /**
+         * @return the plan of a structured query, or null for a substring search
+         */
+        public String getPlan() {
+            return plan;
+        }
+    }
+
+    private ProductService(ProductStore store, boolean writable) {
+        this.store = store;
+        store.enablePageCache(Long.getLong("search.pagecache.mb", 0) * 1024 * 1024);
+        scanner = new ParallelScanner(store, Integer.getInteger("search.parallelism",
+                Runtime.getRuntime().availableProcessors()));
+        queryCache = new QueryCache(Long.getLong("search.cache.mb", 64) * 1024 * 1024);
+        appends = writable ? new AppendQueue(store, Integer.getInteger("product.append.batch", 1024), true) : null;
+        // reclaims deleted slots in the background, paced so searches keep the disk
+        compactor = writable ? new ProductCompactor(store,
+                Double.parseDouble(System.getProperty("product.compact.share", "0.2")),
+                Long.getLong("product.compact.mbps", 8) * 1024 * 1024, 30_000) : null;
+    }
+
+    /**
+     * Open a product file, migrating it first if it still uses an old layout
+     * @param path location of the product file
+     * @param writable true to allow adds, updates and deletes
+     * @return the service
+     * @throws IOException if the file cannot be migrated or opened
+     */
+    public static ProductService open(String path, boolean writable) throws IOException {
+        if (LegacyProductMigrator.isLegacy(path)) {
+            LegacyProductMigrator.migrate(path);
+        }
+        return new ProductService(ProductStore.open(path, writable, ProductStore.StorageMode.configured()),
+                writable);
+    }
+
+    /**
+     * Check search text before starting a search with it
+     * @param text search text
+     * @param asQuery true to treat plain text as a query too, e.g. to get its plan
+     * @return an error message, or null if the text can be searched for
+     */
+    public static String checkQuery(String text, boolean asQuery) {
+        if (!asQuery && !ProductQuery.isStructured(text)) {
+            return null;
+        }
+        try {
+            ProductQuery.parse(text);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * Store a product and force it to disk. Adds from several threads at once are
+     * written by the append queue with one write and one sync per batch.
+     * @param product product to store
+     * @return the record number it was written to
+     * @throws IOException if the write or the sync fails
+     */
+    public long add(Product product) throws IOException {
+        if (appends == null) {
+            return store.append(product);
+        }
+        try {
+            return appends.submit(product).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while adding a product");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Store a batch of products with a single sync
+     * @param products products to store, in order
+     * @return the record number of the first product
+     * @throws IOException if the write or the sync fails
+     */
+    public long addAll(List<Product> products) throws IOException {
+        long first = store.addAll(products);
+        store.sync();
+        return first;
+    }
+
+    /**
+     * @param id product ID, surrounding whitespace is ignored
+     * @return the newest live product with that ID, or null if there is none
+     * @throws IOException if the ID index has to catch up and cannot be written
+     */
+    public Product getById(String id) throws IOException {
+        return store.getById(id);
+    }
+
+    /**
+     * Update the product with an ID in place and force it to disk
+     * @param id product ID
+     * @param product new contents, with the same ID
+     * @return true if the product was found
+     * @throws IOException if the write or the sync fails
+     */
+    public boolean update(String id, Product product) throws IOException {
+        boolean found = store.updateById(id, product);
+        store.sync();
+        return found;
+    }
+
+    /**
+     * Delete the product with an ID and force the tombstone to disk
+     * @param id product ID
+     * @return true if the product was found
+     * @throws IOException if the write or the sync fails
+     */
+    public boolean delete(String id) throws IOException {
+        boolean found = store.deleteById(id);
+        store.sync();
+        return found;
+    }
+
+    /**
+     * @param recordNo record number from a search or range result
+     * @return the product in that record
+     */
+    public Product read(long recordNo) {
+        return store.read(recordNo);
+    }
+
+    /**
+     * Find every product matching search text, on all cores
+     * @param text substring to look for, or text in the ProductQuery syntax
+     * @return ascending record numbers of the hits
+     * @throws IOException if the file cannot be refreshed or an index cannot be written
+     */
+    public int[] search(String text) throws IOException {
+        return search(text, false, (hits, scanned, total) -> true).getRecordNos();
+    }
+
+    /**
+     * Search for text, handing each chunk of hits to a listener as it is found.
+     * Plain text is a case-insensitive substring search whose results are cached
+     * and, when the next term extends this one, used to narrow the next search.
+     * Text in the query syntax is parsed, planned and run against the candidates
+     * of the chosen index.
+     * @param text search text
+     * @param asQuery true to treat plain text as a query too, e.g. to get its plan
+     * @param listener receives the hits; returning false stops the search
+     * @return the hits and how they were found
+     * @throws IOException if the file cannot be refreshed or an index cannot be written
+     * @throws IllegalArgumentException if the text is not a valid query
+     */
+    public SearchResult search(String text, boolean asQuery, ParallelScanner.ChunkListener listener)
+            throws IOException {
+        store.refresh();
+        long generation = store.getGeneration();
+        HitCollector collector = new HitCollector(listener);
+        if (asQuery || ProductQuery.isStructured(text)) {
+            ProductQuery query = ProductQuery.parse(text);
+            ProductQuery.Plan plan = query.plan(store);
+            // a query on one field reads just that field, from its column when there is one
+            ProductColumns.Column column = query.column();
+            if (column == null) {
+                scanner.scan(query, plan.candidates(), collector);
+            } else {
+                scanner.scan(query, column, plan.candidates(), collector);
+            }
+            return new SearchResult(text, collector.toArray(), !collector.stopped, false, plan.explain());
+        }
+
+        String term = QueryCache.normalize(text);
+        int[] cached = queryCache.get(term, generation);
+        if (cached != null) {
+            long records = store.getRecordCount();
+            collector.onChunk(Arrays.stream(cached).asLongStream().toArray(), records, records);
+            return new SearchResult(term, cached, !collector.stopped, true, null);
+        }
+        int[] within = null;
+        synchronized (this) {
+            // every record containing the new term also contains a term it extends,
+            // so only the previous hits need checking
+            if (lastTerm != null && term.contains(lastTerm) && lastGeneration == generation) {
+                within = lastHits;
+            }
+        }
+        if (within != null) {
+            scanner.scanContains(term, within, collector);
+        } else {
+            scanner.scanContains(term, collector);
+        }
+        int[] hits = collector.toArray();
+        if (!collector.stopped) {
+            queryCache.put(term, generation, hits);
+            synchronized (this) {
+                lastTerm = term;
+                lastHits = hits;
+                lastGeneration = generation;
+            }
+        }
+        return new SearchResult(term, hits, !collector.stopped, false, null);
+    }
+
+    /**
+     * Find the products in a price range using the cost index
+     * @param min lowest cost, inclusive
+     * @param max highest cost, inclusive
+     * @return record numbers ordered by cost, then by record number
+     */
+    public long[] range(double min, double max) {
+        return store.costRange(Product.ceilCents(min), Product.floorCents(max));
+    }
+
+    /**
+     * Roll up the cost of every live product. The catalog is split into ranges
+     * summarized on all cores straight from the cost column or row slots.
+     * @param bucketWidthCents width of each histogram bucket in cents
+     * @param buckets number of histogram buckets, or 0 for none
+     * @return the summary
+     * @throws IOException if the file cannot be refreshed
+     */
+    public CostSummary summarize(long bucketWidthCents, int buckets) throws IOException {
+        store.refresh();
+        long records = store.getRecordCount();
+        long parts = (records + SUMMARY_RANGE - 1) / SUMMARY_RANGE;
+        return LongStream.range(0, parts).parallel().collect(
+                () -> new CostSummary(bucketWidthCents, buckets),
+                (summary, part) -> summary.addRange(store, part * SUMMARY_RANGE,
+                        Math.min(records, (part + 1) * SUMMARY_RANGE)),
+                CostSummary::combine);
+    }
+
+    /**
+     * Roll up the cost of the products matching search text
+     * @param text substring to look for, or text in the ProductQuery syntax
+     * @param bucketWidthCents width of each histogram bucket in cents
+     * @param buckets number of histogram buckets, or 0 for none
+     * @return the summary
+     * @throws IOException if the file cannot be refreshed or an index cannot be written
+     * @throws IllegalArgumentException if the text is not a valid query
+     */
+    public CostSummary summarize(String text, long bucketWidthCents, int buckets) throws IOException {
+        return new CostSummary(bucketWidthCents, buckets).addRecords(store, search(text));
+    }
+
+    /**
+     * @param limit largest number of products to return
+     * @return record numbers of the cheapest products, cheapest first
+     */
+    public long[] cheapest(int limit) {
+        return store.cheapest(limit);
+    }
+
+    /**
+     * Stream every live product in file order. The stream splits by record range,
+     * so parallel() spreads the decoding across cores.
+     * @return a stream over the records present when it was created
+     */
+    public Stream<Product> stream() {
+        return StreamSupport.stream(new RecordSpliterator(0, store.getRecordCount()), false);
+    }
+
+    /**
+     * @return number of records, live and deleted, as of the last refresh
+     */
+    public long getRecordCount() {
+        return store.getRecordCount();
+    }
+
+    /**
+     * @return the underlying store, for views that read records directly
+     */
+    public ProductStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the result cache, for its hit, miss and eviction counters
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (appends != null) {
+            appends.close();
+        }
+        if (compactor != null) {
+            compactor.close();
+        }
+        scanner.shutdown();
+        store.close();
+    }
+
+    /**
+     * Forwards chunks to the caller's listener and keeps a copy of every hit
+     */
+    private static class HitCollector implements ParallelScanner.ChunkListener {
+        private final ParallelScanner.ChunkListener listener;
+        private int[] hits = new int[64];
+        private int count;
+        private boolean stopped;
+
+        HitCollector(ParallelScanner.ChunkListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean onChunk(long[] chunk, long scanned, long total) {
+            if (count + chunk.length > hits.length) {
+                hits = Arrays.copyOf(hits, Math.max(hits.length * 2, count + chunk.length));
+            }
+            for (long recordNo : chunk) {
+                hits[count++] = (int) recordNo;
+            }
+            stopped = !listener.onChunk(chunk, scanned, total);
+            return !stopped;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(hits, count);
+        }
+    }
+
+    /**
+     * Walks a record range, skipping deleted records, and splits it in half for
+     * parallel streams
+     */
+    private class RecordSpliterator implements Spliterator<Product> {
+        // ranges smaller than this are not split further
+        private static final long MIN_SPLIT = 4096;
+
+        private long from;
+        private final long to;
+
+        RecordSpliterator(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Product> action) {
+            while (from < to) {
+                long recordNo = from++;
+                if (!store.isDeleted(recordNo)) {
+                    action.accept(store.read(recordNo));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Product> action) {
+            store.forEachInRange(from, to, (recordNo, product) -> {
+                if (!store.isDeleted(recordNo)) {
+                    action.accept(product);
+                }
+            });
+            from = to;
+        }
+
+        @Override
+        public Spliterator<Product> trySplit() {
+            if (to - from < 2 * MIN_SPLIT) {
+                return null;
+            }
+            long middle = from + (to - from) / 2;
+            Spliterator<Product> prefix = new RecordSpliterator(from, middle);
+            from = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+}
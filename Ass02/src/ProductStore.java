@@ -0,0 +1,1252 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32C;
+
+/**
+ * Memory-mapped view of products.dat shared by RandProductMaker and RandProductSearch.
+ * Records are read straight out of the mapping at a fixed stride instead of issuing
+ * a readUTF/readDouble system call per field. See ProductRecord for the file layout.
+ *
+ * Records past the header's synced count are checked against their checksums as
+ * they are mapped, and only the intact prefix is visible. A writable open repairs
+ * the file by cutting it back to that prefix, so recovery after a crash reads just
+ * the records written since the last sync.
+ *
+ * updateById and deleteById rewrite a slot in place; a delete only sets the
+ * record's DELETED flag. Range visitors still see tombstones (isDeleted tells them
+ * apart), while ID lookups, cost queries and ParallelScanner leave them out until
+ * compact copies the live records into a fresh file.
+ */
+public class ProductStore implements Closeable {
+    public static final int RECORD_SIZE = ProductRecord.RECORD_SIZE;
+
+    // A single MappedByteBuffer tops out at 2 GB, so larger files are split into
+    // segments that always hold a whole number of records.
+    private static final long SEGMENT_SIZE = (Integer.MAX_VALUE / RECORD_SIZE) * (long) RECORD_SIZE;
+    // largest number of records encoded into the write buffer for a single write call
+    private static final int WRITE_BATCH_RECORDS = 8192;
+    // records copied per write while compacting, between pauses
+    private static final int COMPACT_BATCH_RECORDS = 4096;
+
+    private final String path;
+    private FileChannel channel;
+    private final boolean writable;
+    private final AppendLock appendLock;
+    private ProductIdIndex idIndex;
+    private TrigramIndex trigramIndex;
+    private CostIndex costIndex;
+    private ProductColumns columns;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    // readers use these without locking; view is always published before the count
+    private volatile MappedByteBuffer[] view = new MappedByteBuffer[0];
+    private volatile long recordCount;
+    private volatile long generation;
+    private long mappedLength;
+    // header fields as of the last refresh, and how many mapped records passed their checksum
+    private long committedRecords;
+    private long syncedRecords;
+    private long verifiedRecords;
+    private volatile long deletedRecords;
+    private volatile long rewriteCount;
+    private long rewrittenFrom = -1;
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer writeBuffer;
+    private volatile RecordPageCache pageCache;
+
+    /**
+     * How records are laid out on disk. ROW keeps only products.dat; COLUMNAR also
+     * keeps one file per field (see ProductColumns) so single-field scans read less.
+     */
+    public enum StorageMode {
+        ROW, COLUMNAR;
+
+        /**
+         * @return the mode named by the product.storage system property, ROW by default
+         */
+        public static StorageMode configured() {
+            return valueOf(System.getProperty("product.storage", "row").trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Callback used by forEach for every record in the store
+     */
+    public interface ProductVisitor {
+        void visit(long recordNo, Product product);
+    }
+
+    /**
+     * Callback that sees a record's encoded slot without decoding it
+     */
+    public interface SlotVisitor {
+        void visit(long recordNo, ByteBuffer buffer, int offset);
+    }
+
+    private ProductStore(String path, FileChannel channel, boolean writable, AppendLock appendLock)
+            throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.writable = writable;
+        this.appendLock = appendLock;
+        if (writable) {
+            appendLock.acquire();
+            try {
+                if (channel.size() == 0) {
+                    writeHeader(0, 0, 0);
+                }
+                refresh();
+                recover();
+            } finally {
+                appendLock.release();
+            }
+        }
+        refresh();
+    }
+
+    // Cuts off a tail left by a writer that died mid-append, turns slots torn by an
+    // unsynced rewrite into tombstones, and marks what is left as synced so the
+    // next open has nothing to check. Called holding appendLock.
+    private void recover() throws IOException {
+        long length = ProductRecord.HEADER_SIZE + recordCount * RECORD_SIZE;
+        boolean damaged = committedRecords != recordCount || channel.size() != length;
+        long torn = rewrittenFrom < 0 ? 0 : buryTornSlots(rewrittenFrom, Math.min(syncedRecords, recordCount));
+        if (!damaged && torn == 0 && syncedRecords == recordCount && rewrittenFrom < 0) {
+            return;
+        }
+        if (channel.size() > length) {
+            channel.truncate(length);
+        }
+        channel.force(false);
+        deletedRecords += torn;
+        rewrittenFrom = -1;
+        writeHeader(recordCount, damaged || torn > 0 ? generation + 1 : generation, recordCount);
+        channel.force(false);
+        refresh();
+    }
+
+    // A rewrite torn by a crash has lost both the old and the new contents, so the
+    // record is marked deleted rather than served as garbage
+    private long buryTornSlots(long from, long to) throws IOException {
+        long torn = 0;
+        MappedByteBuffer[] mapped = view;
+        for (long recordNo = from; recordNo < to; recordNo++) {
+            if (!ProductRecord.isIntact(segmentFor(mapped, recordNo), offsetFor(recordNo), crc)) {
+                ByteBuffer slot = writeBuffer(1);
+                slot.put(0, segmentFor(mapped, recordNo), offsetFor(recordNo), RECORD_SIZE);
+                ProductRecord.markDeleted(slot, 0);
+                slot.limit(RECORD_SIZE);
+                writeFully(slot, ProductRecord.HEADER_SIZE + recordNo * RECORD_SIZE);
+                torn++;
+            }
+        }
+        return torn;
+    }
+
+    /**
+     * Open a product file together with its ID index, creating them when opened for writing
+     * @param path location of the product file
+     * @param writable true to allow appends
+     * @return a store mapped over the current contents of the file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static ProductStore open(String path, boolean writable) throws IOException {
+        return open(path, writable, StorageMode.ROW);
+    }
+
+    /**
+     * Open a product file with its indexes and, in COLUMNAR mode, its column files.
+     * A read-only store whose column files have not been written yet reads rows only.
+     * @param path location of the product file
+     * @param writable true to allow appends
+     * @param mode storage layout to use
+     * @return a store mapped over the current contents of the file
+     * @throws IOException if a file cannot be opened or mapped
+     */
+    public static ProductStore open(String path, boolean writable, StorageMode mode) throws IOException {
+        ProductStore store = openChannel(path, writable, true);
+        try {
+            // index and column catch-up writes shared files, so other writers wait
+            store.appendLock.acquire();
+            try {
+                store.refresh();
+                store.openSideFiles(path, writable, mode);
+            } finally {
+                store.appendLock.release();
+            }
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    private void openSideFiles(String path, boolean writable, StorageMode mode) throws IOException {
+        idIndex = ProductIdIndex.open(sidePath(path, ".idx"), this);
+        trigramIndex = TrigramIndex.open(sidePath(path, ".tri"), this, writable);
+        costIndex = CostIndex.open(sidePath(path, ".cost.idx"), this);
+        if (mode == StorageMode.COLUMNAR) {
+            openColumns();
+        }
+    }
+
+    private void openColumns() throws IOException {
+        try {
+            columns = ProductColumns.open(path, this, writable);
+        } catch (NoSuchFileException e) {
+            if (writable) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Open a product file without touching its index files, for bulk rewrites
+     * @param path location of the product file
+     * @param writable true to allow appends
+     * @return a store mapped over the current contents of the file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static ProductStore openWithoutIndexes(String path, boolean writable) throws IOException {
+        return openChannel(path, writable, false);
+    }
+
+    private static ProductStore openChannel(String path, boolean writable, boolean shared) throws IOException {
+        FileChannel channel = openFile(path, writable);
+        AppendLock appendLock = AppendLock.open(path, shared);
+        try {
+            return new ProductStore(path, channel, writable, appendLock);
+        } catch (IOException e) {
+            channel.close();
+            appendLock.close();
+            throw e;
+        }
+    }
+
+    private static FileChannel openFile(String path, boolean writable) throws IOException {
+        return writable
+                ? FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+    }
+
+    /**
+     * Path of a file kept next to the product file, e.g. products.idx for products.dat
+     * @param path location of the product file
+     * @param extension extension of the side file including the dot
+     * @return the side file path
+     */
+    public static String sidePath(String path, String extension) {
+        String base = path.endsWith(".dat") ? path.substring(0, path.length() - 4) : path;
+        return base + extension;
+    }
+
+    /**
+     * Remove the indexes and column files of a product file whose records were
+     * renumbered or rewritten, so the next open rebuilds them
+     * @param path location of the product file
+     * @throws IOException if a file cannot be deleted
+     */
+    public static void deleteSideFiles(String path) throws IOException {
+        Files.deleteIfExists(Paths.get(sidePath(path, ".idx")));
+        Files.deleteIfExists(Paths.get(sidePath(path, ".tri")));
+        Files.deleteIfExists(Paths.get(sidePath(path, ".cost.idx")));
+        ProductColumns.delete(path);
+    }
+
+    /**
+     * Pick up records appended since the file was last mapped, and switch to the
+     * compacted file if compaction has replaced this one
+     * @throws IOException if the new region cannot be mapped
+     */
+    public synchronized void refresh() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ProductRecord.HEADER_SIZE);
+        if (channel.read(header, 0) < ProductRecord.HEADER_SIZE) {
+            throw new IOException("Product file header is truncated");
+        }
+        committedRecords = ProductRecord.checkHeader(header);
+        if (ProductRecord.isRetired(header)) {
+            reopen();
+            return;
+        }
+        generation = ProductRecord.generation(header);
+        syncedRecords = ProductRecord.syncedCount(header);
+        deletedRecords = ProductRecord.deletedCount(header);
+        rewriteCount = ProductRecord.rewriteCount(header);
+        rewrittenFrom = ProductRecord.rewrittenFrom(header);
+        // only records covered by both the header and the file are visible
+        long available = (channel.size() - ProductRecord.HEADER_SIZE) / RECORD_SIZE;
+        long usable = Math.min(committedRecords, available) * RECORD_SIZE;
+        if (usable != mappedLength) {
+            // the last segment may be partial, so remap it along with any new ones;
+            // a file cut back by recovery may also have lost whole segments
+            int first = (int) Math.min(segments.isEmpty() ? 0 : segments.size() - 1, usable / SEGMENT_SIZE);
+            while (segments.size() > first) {
+                segments.remove(segments.size() - 1);
+            }
+            for (long start = first * SEGMENT_SIZE; start < usable; start += SEGMENT_SIZE) {
+                long length = Math.min(SEGMENT_SIZE, usable - start);
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY,
+                        ProductRecord.HEADER_SIZE + start, length));
+            }
+            mappedLength = usable;
+            view = segments.toArray(new MappedByteBuffer[0]);
+        }
+        long mappedRecords = usable / RECORD_SIZE;
+        if (recordCount != mappedRecords) {
+            recordCount = verify(mappedRecords);
+        }
+        if (columns != null) {
+            columns.refresh(recordCount, rewriteCount);
+        }
+    }
+
+    // Checks the mapped records nobody has vouched for yet and returns how many
+    // leading records are intact. Records below the synced count were forced to
+    // disk before the marker was written and are trusted as they are.
+    private long verify(long mappedRecords) {
+        verifiedRecords = Math.min(verifiedRecords, mappedRecords);
+        long recordNo = Math.min(mappedRecords, Math.max(verifiedRecords, syncedRecords));
+        MappedByteBuffer[] mapped = view;
+        while (recordNo < mappedRecords && ProductRecord.isIntact(segmentFor(mapped, recordNo),
+                offsetFor(recordNo), crc)) {
+            recordNo++;
+        }
+        verifiedRecords = recordNo;
+        return recordNo;
+    }
+
+    // Switches to the file compaction put in place of this one. Record numbers have
+    // changed: the ID index and columns are reopened (the compacting writer rebuilt
+    // them before letting go of the lock) and the other indexes rebuild when next used.
+    private void reopen() throws IOException {
+        appendLock.acquire();
+        try {
+            channel.close();
+            channel = openFile(path, writable);
+            boolean hadColumns = columns != null;
+            if (hadColumns) {
+                columns.close();
+                columns = null;
+            }
+            segments.clear();
+            view = new MappedByteBuffer[0];
+            mappedLength = 0;
+            verifiedRecords = 0;
+            recordCount = 0;
+            refresh();
+            if (idIndex != null) {
+                idIndex.close();
+                idIndex = ProductIdIndex.open(sidePath(path, ".idx"), this);
+            }
+            if (trigramIndex != null) {
+                trigramIndex.discard();
+            }
+            if (hadColumns) {
+                openColumns();
+            }
+        } finally {
+            appendLock.release();
+        }
+    }
+
+    /**
+     * @return number of records, live and deleted, as of the last refresh
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return number of deleted records compaction would reclaim, as of the last refresh
+     */
+    public long getDeletedCount() {
+        return deletedRecords;
+    }
+
+    /**
+     * @return a counter that changes whenever records are rewritten in place or
+     * renumbered by compaction, as of the last refresh
+     */
+    public long getRewriteCount() {
+        return rewriteCount;
+    }
+
+    /**
+     * @param recordNo zero based record number
+     * @return true if the record has been deleted and is waiting for compaction
+     */
+    public boolean isDeleted(long recordNo) {
+        return deletedRecords != 0
+                && ProductRecord.isDeleted(segmentFor(view, recordNo), offsetFor(recordNo));
+    }
+
+    /**
+     * @return a counter that changes whenever records are written, as of the last refresh
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Serve read, forEach and forEachInRange from a cache of decoded pages, so
+     * records decoded again skip the UTF-8 decoding. Slot visitors, and so the
+     * byte-level scans, still read the mapping.
+     * @param budgetBytes memory the cache may use, or 0 to turn it off
+     */
+    public void enablePageCache(long budgetBytes) {
+        pageCache = budgetBytes > 0 ? new RecordPageCache(this, budgetBytes) : null;
+    }
+
+    /**
+     * @return the page cache, or null if it is not enabled
+     */
+    public RecordPageCache getPageCache() {
+        return pageCache;
+    }
+
+    /**
+     * Decode a single record
+     * @param recordNo zero based record number
+     * @return the product stored in that slot
+     */
+    public Product read(long recordNo) {
+        checkRecord(recordNo);
+        RecordPageCache cache = pageCache;
+        if (cache != null) {
+            return cache.read(recordNo);
+        }
+        return ProductRecord.decode(segmentFor(view, recordNo), offsetFor(recordNo),
+                new byte[Product.DESCRIPTION_LENGTH]);
+    }
+
+    /**
+     * Find a product by its exact ID using the hash index
+     * @param id product ID, surrounding whitespace is ignored
+     * @return the newest product with that ID, or null if there is none or it was deleted
+     * @throws IOException if the index has to be brought up to date and cannot be written
+     */
+    public synchronized Product getById(String id) throws IOException {
+        long recordNo = findRecordById(id);
+        return recordNo < 0 ? null : read(recordNo);
+    }
+
+    /**
+     * Find the record number of a product by its exact ID using the hash index
+     * @param id product ID, surrounding whitespace is ignored
+     * @return the record number of the newest product with that ID, or -1 if there
+     * is none or it was deleted
+     * @throws IOException if the index has to be brought up to date and cannot be written
+     */
+    public synchronized long findRecordById(String id) throws IOException {
+        if (idIndex == null) {
+            throw new IllegalStateException("Product store was opened without indexes");
+        }
+        String key = id.trim();
+        // the index keys are cut to the slot width, so a longer ID would find the
+        // product whose ID is its prefix; no stored ID can be that long
+        if (key.getBytes(StandardCharsets.UTF_8).length > Product.ID_LENGTH) {
+            return -1;
+        }
+        if (idIndexIsCurrent()) {
+            // the index covers exactly the mapped records, so it can answer without
+            // the lock; the deleted flag is read from the slot, which other
+            // processes' deletes reach through the shared mapping
+            long recordNo = idIndex.get(key);
+            if (recordNo < 0) {
+                return -1;
+            }
+            if (recordNo < recordCount && read(recordNo).getID().equals(key)) {
+                return ProductRecord.isDeleted(segmentFor(view, recordNo), offsetFor(recordNo)) ? -1 : recordNo;
+            }
+        }
+        appendLock.acquire();
+        try {
+            // writers in other processes update the index file too, so only use it
+            // with the data file mapped at least as far as the index covers
+            refresh();
+            catchUpIdIndex();
+            long recordNo = idIndex.get(key);
+            if (recordNo >= 0 && !read(recordNo).getID().equals(key)) {
+                // the index no longer matches the data file, so start it over
+                idIndex.rebuild(this);
+                recordNo = idIndex.get(key);
+                if (recordNo >= 0 && !read(recordNo).getID().equals(key)) {
+                    return -1;
+                }
+            }
+            return recordNo >= 0 && isDeleted(recordNo) ? -1 : recordNo;
+        } finally {
+            appendLock.release();
+        }
+    }
+
+    /**
+     * Check whether an ID lookup can stand for every record with that ID. The hash
+     * index keeps only the newest record of an ID, so once an ID has been written
+     * to two records the older ones can only be found by scanning.
+     * @return true if some ID has been put on more than one record
+     * @throws IOException if the index has to be brought up to date and cannot be written
+     */
+    public synchronized boolean hasDuplicateIds() throws IOException {
+        if (idIndex == null) {
+            throw new IllegalStateException("Product store was opened without indexes");
+        }
+        if (idIndexIsCurrent()) {
+            return idIndex.getShadowedCount() > 0;
+        }
+        appendLock.acquire();
+        try {
+            refresh();
+            catchUpIdIndex();
+            return idIndex.getShadowedCount() > 0;
+        } finally {
+            appendLock.release();
+        }
+    }
+
+    /**
+     * Count the records written with an ID using the hash index
+     * @param id product ID, surrounding whitespace is ignored
+     * @return number of records with that ID, counting deleted ones that have not
+     * been compacted away yet
+     * @throws IOException if the index has to be brought up to date and cannot be written
+     */
+    public synchronized long countRecordsWithId(String id) throws IOException {
+        if (idIndex == null) {
+            throw new IllegalStateException("Product store was opened without indexes");
+        }
+        String key = id.trim();
+        if (key.getBytes(StandardCharsets.UTF_8).length > Product.ID_LENGTH) {
+            return 0;
+        }
+        if (idIndexIsCurrent()) {
+            return idIndex.count(key);
+        }
+        appendLock.acquire();
+        try {
+            refresh();
+            catchUpIdIndex();
+            return idIndex.count(key);
+        } finally {
+            appendLock.release();
+        }
+    }
+
+    // True if the mapped ID index is still the file at its path and covers exactly
+    // the records this store has mapped. Reads shared memory only, no system calls.
+    private boolean idIndexIsCurrent() {
+        return !idIndex.isReplaced() && idIndex.getCoveredRecords() == recordCount;
+    }
+
+    // Switches to the index file now at the path if ours was replaced, then adds the
+    // records it is missing. Called holding appendLock.
+    private void catchUpIdIndex() throws IOException {
+        if (idIndex.isReplaced()) {
+            idIndex.reload();
+        }
+        if (idIndex.getCoveredRecords() != recordCount) {
+            idIndex.catchUp(this);
+        }
+    }
+
+    /**
+     * Visit every record in file order
+     * @param visitor called once per record
+     */
+    public void forEach(ProductVisitor visitor) {
+        forEachInRange(0, getRecordCount(), visitor);
+    }
+
+    /**
+     * Visit a contiguous range of records in file order. Safe to call from
+     * several threads at once on disjoint ranges.
+     * @param from first record number, inclusive
+     * @param to last record number, exclusive
+     * @param visitor called once per record
+     */
+    public void forEachInRange(long from, long to, ProductVisitor visitor) {
+        RecordPageCache cache = pageCache;
+        if (cache != null) {
+            cache.forEachInRange(from, to, visitor);
+            return;
+        }
+        to = Math.min(to, recordCount);
+        MappedByteBuffer[] mapped = view;
+        byte[] scratch = new byte[Product.DESCRIPTION_LENGTH];
+        for (long recordNo = from; recordNo < to; recordNo++) {
+            visitor.visit(recordNo, ProductRecord.decode(segmentFor(mapped, recordNo),
+                    offsetFor(recordNo), scratch));
+        }
+    }
+
+    /**
+     * Visit the encoded slots of a contiguous range of records without decoding them.
+     * Nothing is allocated per record.
+     * @param from first record number, inclusive
+     * @param to last record number, exclusive
+     * @param visitor called once per record with the buffer and offset of its slot
+     */
+    public void forEachSlotInRange(long from, long to, SlotVisitor visitor) {
+        to = Math.min(to, recordCount);
+        MappedByteBuffer[] mapped = view;
+        for (long recordNo = from; recordNo < to; recordNo++) {
+            visitor.visit(recordNo, segmentFor(mapped, recordNo), offsetFor(recordNo));
+        }
+    }
+
+    /**
+     * Visit one field of a contiguous range of records. In COLUMNAR mode the field
+     * is read from its column file, so none of the other fields are touched.
+     * @param column field to visit
+     * @param from first record number, inclusive
+     * @param to last record number, exclusive
+     * @param visitor called once per record with the buffer and offset of the field itself
+     */
+    public void forEachFieldInRange(ProductColumns.Column column, long from, long to, SlotVisitor visitor) {
+        to = Math.min(to, recordCount);
+        ProductColumns cols = columns;
+        long recordNo = from;
+        if (cols != null) {
+            for (long covered = Math.min(to, cols.getCoveredRecords()); recordNo < covered; recordNo++) {
+                visitor.visit(recordNo, cols.segmentFor(column, recordNo), cols.offsetFor(column, recordNo));
+            }
+        }
+        MappedByteBuffer[] mapped = view;
+        for (; recordNo < to; recordNo++) {
+            visitor.visit(recordNo, segmentFor(mapped, recordNo), offsetFor(recordNo) + column.fieldOffset);
+        }
+    }
+
+    /**
+     * Visit one field of a single record
+     * @param column field to visit
+     * @param recordNo zero based record number
+     * @param visitor called with the buffer and offset of the field
+     */
+    public void visitField(ProductColumns.Column column, long recordNo, SlotVisitor visitor) {
+        checkRecord(recordNo);
+        ProductColumns cols = columns;
+        if (cols != null && recordNo < cols.getCoveredRecords()) {
+            visitor.visit(recordNo, cols.segmentFor(column, recordNo), cols.offsetFor(column, recordNo));
+        } else {
+            visitor.visit(recordNo, segmentFor(view, recordNo), offsetFor(recordNo) + column.fieldOffset);
+        }
+    }
+
+    /**
+     * @return true if the store keeps column files next to the row file
+     */
+    public boolean isColumnar() {
+        return columns != null;
+    }
+
+    /**
+     * Visit the encoded slot of a single record
+     * @param recordNo zero based record number
+     * @param visitor called with the buffer and offset of the slot
+     */
+    public void visitSlot(long recordNo, SlotVisitor visitor) {
+        checkRecord(recordNo);
+        visitor.visit(recordNo, segmentFor(view, recordNo), offsetFor(recordNo));
+    }
+
+    /**
+     * Read only the cost of a record, without decoding its text fields
+     * @param recordNo zero based record number
+     * @return the stored cost in cents
+     */
+    public long readCostCents(long recordNo) {
+        checkRecord(recordNo);
+        ProductColumns cols = columns;
+        if (cols != null && recordNo < cols.getCoveredRecords()) {
+            return cols.segmentFor(ProductColumns.Column.COST, recordNo)
+                    .getLong(cols.offsetFor(ProductColumns.Column.COST, recordNo));
+        }
+        return segmentFor(view, recordNo).getLong(offsetFor(recordNo) + ProductRecord.COST_OFFSET);
+    }
+
+    /**
+     * Read the costs of a run of records into an array, from the cost column when
+     * there is one, without decoding anything else
+     * @param from first record number
+     * @param into destination
+     * @param offset first index of into to write
+     * @param count number of records to read
+     */
+    public void readCostCents(long from, long[] into, int offset, int count) {
+        if (count == 0) {
+            return;
+        }
+        checkRecord(from);
+        checkRecord(from + count - 1);
+        ProductColumns cols = columns;
+        if (cols != null && from + count <= cols.getCoveredRecords()) {
+            for (int i = 0; i < count; i++) {
+                into[offset + i] = cols.segmentFor(ProductColumns.Column.COST, from + i)
+                        .getLong(cols.offsetFor(ProductColumns.Column.COST, from + i));
+            }
+            return;
+        }
+        MappedByteBuffer[] mapped = view;
+        for (int i = 0; i < count; i++) {
+            into[offset + i] = segmentFor(mapped, from + i).getLong(offsetFor(from + i) + ProductRecord.COST_OFFSET);
+        }
+    }
+
+    /**
+     * Compare one text field of two records byte by byte, ignoring ASCII case,
+     * without decoding either of them
+     * @param a first record number
+     * @param b second record number
+     * @param fieldOffset offset of the field within a record, e.g. ProductRecord.NAME_OFFSET
+     * @param width width of the field in bytes
+     * @return negative, zero or positive as record a sorts before, with or after record b
+     */
+    public int compareField(long a, long b, int fieldOffset, int width) {
+        checkRecord(a);
+        checkRecord(b);
+        ProductColumns cols = columns;
+        ProductColumns.Column column = columnAt(fieldOffset);
+        ByteBuffer first;
+        ByteBuffer second;
+        int firstOffset;
+        int secondOffset;
+        if (column != null && Math.max(a, b) < cols.getCoveredRecords()) {
+            first = cols.segmentFor(column, a);
+            second = cols.segmentFor(column, b);
+            firstOffset = cols.offsetFor(column, a);
+            secondOffset = cols.offsetFor(column, b);
+        } else {
+            MappedByteBuffer[] mapped = view;
+            first = segmentFor(mapped, a);
+            second = segmentFor(mapped, b);
+            firstOffset = offsetFor(a) + fieldOffset;
+            secondOffset = offsetFor(b) + fieldOffset;
+        }
+        for (int i = 0; i < width; i++) {
+            int x = foldAscii(first.get(firstOffset + i) & 0xFF);
+            int y = foldAscii(second.get(secondOffset + i) & 0xFF);
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Ask the trigram index which records may contain a term
+     * @param term lowercased search term
+     * @return ascending candidate record numbers, or null if every record has to be checked
+     */
+    public int[] candidates(String term) {
+        if (trigramIndex == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (trigramIndex.getCoveredRecords() != recordCount
+                    || trigramIndex.getCoveredRewrites() != rewriteCount) {
+                trigramIndex.catchUp(this);
+            }
+        }
+        return trigramIndex.candidates(term);
+    }
+
+    /**
+     * Find the products in a price range using the cost index
+     * @param minCents lowest cost in cents, inclusive
+     * @param maxCents highest cost in cents, inclusive
+     * @return record numbers ordered by cost, then by record number
+     */
+    public long[] costRange(long minCents, long maxCents) {
+        return withoutDeleted(upToDateCostIndex().range(minCents, maxCents), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Count the products in a price range using the cost index
+     * @param minCents lowest cost in cents, inclusive
+     * @param maxCents highest cost in cents, inclusive
+     * @return number of products in the range, counting deleted ones that have not
+     * been compacted away yet
+     */
+    public long countCostRange(long minCents, long maxCents) {
+        return upToDateCostIndex().count(minCents, maxCents);
+    }
+
+    /**
+     * Find the cheapest products using the cost index
+     * @param limit largest number of products to return
+     * @return up to limit record numbers ordered by cost, then by record number
+     */
+    public long[] cheapest(int limit) {
+        // ask for enough extra entries to make up for any tombstones among them
+        int wanted = (int) Math.min(Integer.MAX_VALUE, (long) limit + deletedRecords);
+        return withoutDeleted(upToDateCostIndex().cheapest(wanted), limit);
+    }
+
+    /**
+     * Visit the records that may contain a term, using the trigram index when the
+     * term is long enough. Callers must still check each product against the term.
+     * @param term lowercased search term
+     * @param visitor called once per candidate, in file order
+     */
+    public void forEachCandidate(String term, ProductVisitor visitor) {
+        int[] candidates = candidates(term);
+        if (candidates == null) {
+            forEach(visitor);
+            return;
+        }
+        for (int recordNo : candidates) {
+            if (!isDeleted(recordNo)) {
+                visitor.visit(recordNo, read(recordNo));
+            }
+        }
+    }
+
+    /**
+     * Overwrite the newest product with an ID in place. The ID itself cannot change.
+     * @param id product ID, surrounding whitespace is ignored
+     * @param product new contents of the record
+     * @return true if the product was found and updated, false if there is none
+     * @throws IOException if the write fails
+     */
+    public synchronized boolean updateById(String id, Product product) throws IOException {
+        if (!product.getID().trim().equals(id.trim())) {
+            throw new IllegalArgumentException("Product ID " + product.getID() + " does not match " + id);
+        }
+        return rewrite(id, product);
+    }
+
+    /**
+     * Mark the newest product with an ID as deleted. Its slot is reclaimed by compact.
+     * @param id product ID, surrounding whitespace is ignored
+     * @return true if the product was found and deleted, false if there is none
+     * @throws IOException if the write fails
+     */
+    public synchronized boolean deleteById(String id) throws IOException {
+        return rewrite(id, null);
+    }
+
+    // Writes the header first, naming the slot as rewritten, so that a crash part
+    // way through the slot write is found by recovery
+    private boolean rewrite(String id, Product product) throws IOException {
+        if (!writable) {
+            throw new IOException("Product store was opened read-only");
+        }
+        appendLock.acquire();
+        try {
+            long recordNo = findRecordById(id);
+            if (recordNo < 0) {
+                return false;
+            }
+            long oldCost = readCostCents(recordNo);
+            ByteBuffer slot = writeBuffer(1);
+            if (product == null) {
+                slot.put(0, segmentFor(view, recordNo), offsetFor(recordNo), RECORD_SIZE);
+                ProductRecord.markDeleted(slot, 0);
+                deletedRecords++;
+            } else {
+                ProductRecord.encode(product, slot, 0);
+            }
+            long previousRewrites = rewriteCount++;
+            rewrittenFrom = rewrittenFrom < 0 ? recordNo : Math.min(rewrittenFrom, recordNo);
+            writeHeader(recordCount, generation + 1, syncedRecords);
+            slot.limit(RECORD_SIZE);
+            writeFully(slot, ProductRecord.HEADER_SIZE + recordNo * RECORD_SIZE);
+            // the column stamp only moves once the new fields are in the columns too
+            if (columns != null) {
+                if (product != null) {
+                    columns.write(slot, 1, recordNo);
+                }
+                columns.stampRewrite(previousRewrites, rewriteCount);
+            } else {
+                if (product != null) {
+                    ProductColumns.writeThrough(path, slot, 1, recordNo);
+                }
+                ProductColumns.stampRewrite(path, previousRewrites, rewriteCount);
+            }
+            refresh();
+            if (trigramIndex != null) {
+                trigramIndex.rewrite(recordNo, product, rewriteCount);
+            }
+            if (costIndex != null) {
+                costIndex.rewrite(recordNo, oldCost, product == null ? oldCost : product.getCostCents(), rewriteCount);
+            }
+            return true;
+        } finally {
+            appendLock.release();
+        }
+    }
+
+    /**
+     * Copy the live records into a new file and swap it in for this one, reclaiming
+     * the slots of deleted records. Record numbers change, so the indexes and column
+     * files are rebuilt and other stores on the file reopen it at their next refresh.
+     * The bulk of the copy runs without the append lock, paced to bytesPerSecond so
+     * it leaves the disk to searches; only records appended meanwhile are copied
+     * while holding it. An update or delete made during the copy abandons the attempt.
+     * @param bytesPerSecond most bytes to copy per second outside the lock, or 0 for no limit
+     * @param cancelled checked between batches; returning true abandons the attempt
+     * @return number of slots reclaimed, or -1 if the attempt was abandoned
+     * @throws IOException if the copy cannot be written or swapped in
+     */
+    public long compact(long bytesPerSecond, BooleanSupplier cancelled) throws IOException {
+        if (!writable) {
+            throw new IOException("Product store was opened read-only");
+        }
+        Path target = Paths.get(path + ".compact");
+        Files.deleteIfExists(target);
+        long snapshot;
+        long rewrites;
+        synchronized (this) {
+            refresh();
+            snapshot = recordCount;
+            rewrites = rewriteCount;
+        }
+        // closed by hand before the copy is moved into place, and in the finally
+        // block on every other way out
+        FileChannel copy = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            long written = copyLive(copy, 0, 0, snapshot, bytesPerSecond, cancelled);
+            if (written < 0) {
+                return -1;
+            }
+            synchronized (this) {
+                appendLock.acquire();
+                try {
+                    refresh();
+                    if (rewriteCount != rewrites) {
+                        return -1;
+                    }
+                    written = copyLive(copy, written, snapshot, recordCount, 0, () -> false);
+                    // the counters carry on from this file, so caches and indexes built
+                    // on the old record numbers are seen to be stale
+                    copy.force(false);
+                    writeFully(copy, ProductRecord.newHeader(written, generation + 1, written,
+                            0, rewriteCount + 1, -1), 0);
+                    copy.force(false);
+                    copy.close();
+                    long reclaimed = recordCount - written;
+                    Files.move(target, Paths.get(path), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    retire();
+                    refresh();
+                    return reclaimed;
+                } finally {
+                    appendLock.release();
+                }
+            }
+        } finally {
+            copy.close();
+            Files.deleteIfExists(target);
+        }
+    }
+
+    // Copies the slots of live records in [from, to) after the first written slots
+    // of the copy, checksums and all, pausing between batches to keep to the rate.
+    // Returns the new number of slots in the copy, or -1 if cancelled.
+    private long copyLive(FileChannel copy, long written, long from, long to, long bytesPerSecond,
+                          BooleanSupplier cancelled) throws IOException {
+        ByteBuffer batch = ByteBuffer.allocateDirect(COMPACT_BATCH_RECORDS * RECORD_SIZE);
+        MappedByteBuffer[] mapped = view;
+        long started = System.nanoTime();
+        long copiedBytes = 0;
+        for (long recordNo = from; recordNo < to; ) {
+            if (cancelled.getAsBoolean()) {
+                return -1;
+            }
+            int count = 0;
+            for (; recordNo < to && count < COMPACT_BATCH_RECORDS; recordNo++) {
+                ByteBuffer segment = segmentFor(mapped, recordNo);
+                int offset = offsetFor(recordNo);
+                if (!ProductRecord.isDeleted(segment, offset)) {
+                    batch.put(count++ * RECORD_SIZE, segment, offset, RECORD_SIZE);
+                }
+            }
+            batch.position(0).limit(count * RECORD_SIZE);
+            writeFully(copy, batch, ProductRecord.HEADER_SIZE + written * RECORD_SIZE);
+            batch.clear();
+            written += count;
+            copiedBytes += (long) count * RECORD_SIZE;
+            if (bytesPerSecond > 0) {
+                long due = started + (long) (copiedBytes * 1e9 / bytesPerSecond);
+                long pause = due - System.nanoTime();
+                if (pause > 0) {
+                    try {
+                        Thread.sleep(pause / 1_000_000, (int) (pause % 1_000_000));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return -1;
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    // Marks the replaced file so that stores still mapping it reopen the path, and
+    // removes the files keyed by the old record numbers so they are rebuilt
+    private void retire() throws IOException {
+        ByteBuffer retired = ByteBuffer.allocate(Long.BYTES);
+        retired.putLong(0, 1);
+        writeFully(retired, ProductRecord.RETIRED_POSITION);
+        if (idIndex != null) {
+            idIndex.retire();
+        }
+        deleteSideFiles(path);
+    }
+
+    /**
+     * Append a product to the end of the file
+     * @param product product to store
+     * @return the record number the product was written to
+     * @throws IOException if the write fails
+     */
+    public synchronized long append(Product product) throws IOException {
+        return addAll(List.of(product));
+    }
+
+    /**
+     * Append a batch of products. Records are encoded into a reused direct buffer
+     * and written with one write call per WRITE_BATCH_RECORDS records; the header
+     * count is updated once at the end, so the whole batch becomes visible at once.
+     * @param products products to store, in order
+     * @return the record number of the first product in the batch
+     * @throws IOException if the write fails
+     */
+    public synchronized long addAll(List<Product> products) throws IOException {
+        if (!writable) {
+            throw new IOException("Product store was opened read-only");
+        }
+        appendLock.acquire();
+        try {
+            // another writer may have appended since the last refresh, so the tail
+            // is only read while holding the lock
+            refresh();
+            long first = recordCount;
+            writeRecords(products, first);
+            updateIndexes(products, first);
+            return first;
+        } finally {
+            appendLock.release();
+        }
+    }
+
+    private void writeRecords(List<Product> products, long first) throws IOException {
+        long next = first;
+        for (int start = 0; start < products.size(); start += WRITE_BATCH_RECORDS) {
+            int batch = Math.min(WRITE_BATCH_RECORDS, products.size() - start);
+            ByteBuffer buffer = writeBuffer(batch);
+            for (int i = 0; i < batch; i++) {
+                ProductRecord.encode(products.get(start + i), buffer, i * RECORD_SIZE);
+            }
+            buffer.position(0).limit(batch * RECORD_SIZE);
+            writeFully(buffer, ProductRecord.HEADER_SIZE + next * RECORD_SIZE);
+            if (columns != null) {
+                columns.write(buffer, batch, next);
+            } else {
+                ProductColumns.writeThrough(path, buffer, batch, next);
+            }
+            next += batch;
+        }
+        // the records only become visible once the header count covers them; they
+        // were encoded here, so refresh does not need to check their checksums
+        writeHeader(next, generation + 1, syncedRecords);
+        verifiedRecords = next;
+        refresh();
+    }
+
+    // Adds the new records to each index, or lets an index that missed records
+    // written by another process catch up from the file instead
+    private void updateIndexes(List<Product> products, long first) throws IOException {
+        if (idIndex != null && (idIndex.isReplaced() || idIndex.getCoveredRecords() != first)) {
+            catchUpIdIndex();
+        }
+        if (trigramIndex != null && (trigramIndex.getCoveredRecords() != first
+                || trigramIndex.getCoveredRewrites() != rewriteCount)) {
+            trigramIndex.catchUp(this);
+        }
+        if (costIndex != null && (costIndex.getCoveredRecords() != first
+                || costIndex.getCoveredRewrites() != rewriteCount)) {
+            costIndex.catchUp(this);
+        }
+        for (int i = 0; i < products.size(); i++) {
+            if (idIndex != null) {
+                idIndex.put(products.get(i).getID(), first + i);
+            }
+            if (trigramIndex != null) {
+                trigramIndex.add(first + i, products.get(i));
+            }
+            if (costIndex != null) {
+                costIndex.add(first + i, products.get(i).getCostCents());
+            }
+        }
+    }
+
+    /**
+     * Force appended and rewritten records out to the storage device, then advance
+     * the header's synced count over them. Writers in other processes are not held
+     * up by the flush, and every write that finished before it is covered, so one
+     * call commits a whole group. The new synced count reaches the disk with the
+     * next sync; until then recovery just checks a few more records.
+     * @throws IOException if the flush fails
+     */
+    public synchronized void sync() throws IOException {
+        long count = recordCount;
+        long rewrites = rewriteCount;
+        if (columns != null) {
+            columns.sync();
+        }
+        channel.force(false);
+        if (!writable) {
+            return;
+        }
+        if (trigramIndex != null) {
+            // other processes load the saved index after our rewrites instead of rebuilding
+            trigramIndex.flushRewrites();
+        }
+        appendLock.acquire();
+        try {
+            refresh();
+            if (committedRecords != recordCount) {
+                return;
+            }
+            boolean advance = count > syncedRecords;
+            // rewrites made after the flush started still need checking after a crash
+            boolean rewritesSynced = rewrittenFrom >= 0 && rewriteCount == rewrites;
+            if (advance || rewritesSynced) {
+                if (rewritesSynced) {
+                    rewrittenFrom = -1;
+                }
+                writeHeader(recordCount, generation, advance ? count : syncedRecords);
+                syncedRecords = Math.max(syncedRecords, count);
+            }
+        } finally {
+            appendLock.release();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segments.clear();
+        view = new MappedByteBuffer[0];
+        recordCount = 0;
+        if (idIndex != null) {
+            idIndex.close();
+        }
+        if (trigramIndex != null) {
+            if (writable && isRetiredOnDisk()) {
+                // compaction renumbered the records since we last looked
+                trigramIndex.discard();
+            }
+            trigramIndex.close();
+        }
+        if (costIndex != null) {
+            costIndex.close();
+        }
+        if (columns != null) {
+            columns.close();
+        }
+        appendLock.close();
+        channel.close();
+    }
+
+    private boolean isRetiredOnDisk() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(ProductRecord.HEADER_SIZE);
+        return channel.read(header, 0) == ProductRecord.HEADER_SIZE && ProductRecord.isRetired(header);
+    }
+
+    private static int foldAscii(int b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    private CostIndex upToDateCostIndex() {
+        if (costIndex == null) {
+            throw new IllegalStateException("Product store was opened without indexes");
+        }
+        synchronized (this) {
+            if (costIndex.getCoveredRecords() != recordCount || costIndex.getCoveredRewrites() != rewriteCount) {
+                costIndex.catchUp(this);
+            }
+        }
+        return costIndex;
+    }
+
+    // Drops deleted records from an index answer and cuts it to limit entries
+    private long[] withoutDeleted(long[] recordNos, int limit) {
+        if (deletedRecords == 0) {
+            return recordNos.length <= limit ? recordNos : Arrays.copyOf(recordNos, limit);
+        }
+        int kept = 0;
+        for (int i = 0; i < recordNos.length && kept < limit; i++) {
+            if (!isDeleted(recordNos[i])) {
+                recordNos[kept++] = recordNos[i];
+            }
+        }
+        return Arrays.copyOf(recordNos, kept);
+    }
+
+    // The column file holding the field at this offset, or null if there is none
+    private ProductColumns.Column columnAt(int fieldOffset) {
+        if (columns == null) {
+            return null;
+        }
+        for (ProductColumns.Column column : ProductColumns.Column.values()) {
+            if (column.fieldOffset == fieldOffset) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    private void checkRecord(long recordNo) {
+        long count = recordCount;
+        if (recordNo < 0 || recordNo >= count) {
+            throw new IndexOutOfBoundsException("Record " + recordNo + " of " + count);
+        }
+    }
+
+    private static ByteBuffer segmentFor(MappedByteBuffer[] mapped, long recordNo) {
+        return mapped[(int) (recordNo * RECORD_SIZE / SEGMENT_SIZE)];
+    }
+
+    private static int offsetFor(long recordNo) {
+        return (int) (recordNo * RECORD_SIZE % SEGMENT_SIZE);
+    }
+
+    private ByteBuffer writeBuffer(int records) {
+        if (writeBuffer == null || writeBuffer.capacity() < records * RECORD_SIZE) {
+            writeBuffer = ByteBuffer.allocateDirect(
+                    Math.max(records, Math.min(WRITE_BATCH_RECORDS, 256)) * RECORD_SIZE);
+        }
+        writeBuffer.clear();
+        return writeBuffer;
+    }
+
+    private void writeHeader(long count, long newGeneration, long synced) throws IOException {
+        writeFully(ProductRecord.newHeader(count, newGeneration, synced, deletedRecords,
+                rewriteCount, rewrittenFrom), 0);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        writeFully(channel, buffer, position);
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += target.write(buffer, position);
+        }
+    }
+}
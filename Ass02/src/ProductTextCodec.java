@@ -0,0 +1,341 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fast codec for the formatted text layout of a product: name, description and ID
+ * each padded with spaces to NAME_LENGTH, DESCRIPTION_LENGTH and ID_LENGTH
+ * characters, then the cost with two decimals. Fields longer than their width are
+ * written whole, as "%-35s" does. The output is the same as the String.format
+ * version it replaces, character for character, but fields are copied straight
+ * into the caller's StringBuilder or byte array instead of going through a format
+ * pattern, and parsing reads the columns in place instead of cutting substrings.
+ *
+ * The cost is always written with a '.' (Locale.ROOT), which is the only form
+ * fromFormattedString ever accepted. It is written from the product's whole cents,
+ * and a plain number with up to two decimals is read straight back into cents;
+ * anything else is left to Double.parseDouble and rounded like Product.toCents.
+ *
+ * All methods are static and thread-safe.
+ */
+public class ProductTextCodec {
+    public static final int DESCRIPTION_COLUMN = Product.NAME_LENGTH;
+    public static final int ID_COLUMN = DESCRIPTION_COLUMN + Product.DESCRIPTION_LENGTH;
+    public static final int COST_COLUMN = ID_COLUMN + Product.ID_LENGTH;
+
+    private ProductTextCodec() {
+    }
+
+    /**
+     * Append the formatted line of a product
+     * @param product product to format
+     * @param out destination
+     * @return out
+     */
+    public static StringBuilder format(Product product, StringBuilder out) {
+        pad(product.getName(), Product.NAME_LENGTH, out);
+        pad(product.getDescription(), Product.DESCRIPTION_LENGTH, out);
+        pad(product.getID(), Product.ID_LENGTH, out);
+        return formatCents(product.getCostCents(), out);
+    }
+
+    /**
+     * Append a value padded with spaces on the right to a width, as "%-<width>s" does
+     * @param value value to append; null appends "null"
+     * @param width smallest number of characters to append
+     * @param out destination
+     * @return out
+     */
+    public static StringBuilder pad(String value, int width, StringBuilder out) {
+        String text = String.valueOf(value);
+        out.append(text);
+        for (int i = text.length(); i < width; i++) {
+            out.append(' ');
+        }
+        return out;
+    }
+
+    /**
+     * Append a cost with two decimals, as "%.2f" does in Locale.ROOT
+     * @param cents cost in whole cents
+     * @param out destination
+     * @return out
+     */
+    public static StringBuilder formatCents(long cents, StringBuilder out) {
+        if (cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % 100;
+        return out.append(cents / 100).append('.')
+                .append((char) ('0' + fraction / 10)).append((char) ('0' + fraction % 10));
+    }
+
+    /**
+     * Write the formatted line of a product as UTF-8, the bytes of
+     * toFormattedString().getBytes(UTF_8)
+     * @param product product to format
+     * @param bytes destination
+     * @param offset where the line starts within bytes
+     * @return number of bytes written
+     * @throws IndexOutOfBoundsException if the line does not fit
+     */
+    public static int encode(Product product, byte[] bytes, int offset) {
+        int at = offset;
+        at = putPadded(product.getName(), Product.NAME_LENGTH, bytes, at);
+        at = putPadded(product.getDescription(), Product.DESCRIPTION_LENGTH, bytes, at);
+        at = putPadded(product.getID(), Product.ID_LENGTH, bytes, at);
+        return encodeCents(product.getCostCents(), bytes, at) - offset;
+    }
+
+    /**
+     * Write the formatted line of a product as UTF-8 at the buffer's position and
+     * advance it
+     * @param product product to format
+     * @param buffer destination
+     * @throws BufferOverflowException if the line does not fit in the remaining bytes
+     */
+    public static void encode(Product product, ByteBuffer buffer) {
+        int length = encodedLength(product);
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        if (buffer.hasArray()) {
+            encode(product, buffer.array(), buffer.arrayOffset() + buffer.position());
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] line = new byte[length];
+            encode(product, line, 0);
+            buffer.put(line);
+        }
+    }
+
+    /**
+     * @param product product to format
+     * @return number of bytes encode writes for it
+     */
+    public static int encodedLength(Product product) {
+        return paddedLength(product.getName(), Product.NAME_LENGTH)
+                + paddedLength(product.getDescription(), Product.DESCRIPTION_LENGTH)
+                + paddedLength(product.getID(), Product.ID_LENGTH)
+                + centsLength(product.getCostCents());
+    }
+
+    /**
+     * Parse a formatted line. Gives the same product as splitting the columns with
+     * substring, trimming them and parsing the cost with Double.parseDouble.
+     * @param line a line in the formatted layout
+     * @return the product
+     * @throws IndexOutOfBoundsException if the line is shorter than the fixed columns
+     * @throws NumberFormatException if the cost column is not a number
+     * @throws IllegalArgumentException if the cost is out of range
+     */
+    public static Product parse(CharSequence line) {
+        if (line.length() < COST_COLUMN) {
+            throw new StringIndexOutOfBoundsException("Formatted product line is only " + line.length()
+                    + " characters long");
+        }
+        return Product.withCents(trimmed(line, 0, DESCRIPTION_COLUMN),
+                trimmed(line, DESCRIPTION_COLUMN, ID_COLUMN),
+                trimmed(line, ID_COLUMN, COST_COLUMN),
+                parseCents(line, COST_COLUMN, line.length()));
+    }
+
+    /**
+     * Parse a formatted line held as UTF-8 bytes, such as a line written by encode
+     * @param bytes source
+     * @param offset where the line starts within bytes
+     * @param length number of bytes in the line, without a line terminator
+     * @return the product
+     * @throws IndexOutOfBoundsException if the line is shorter than the fixed columns
+     * @throws NumberFormatException if the cost column is not a number
+     * @throws IllegalArgumentException if the cost is out of range
+     */
+    public static Product parse(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (bytes[i] < 0) {
+                // columns count characters, so multi-byte text has to be decoded first
+                return parse(new String(bytes, offset, length, StandardCharsets.UTF_8));
+            }
+        }
+        if (length < COST_COLUMN) {
+            throw new StringIndexOutOfBoundsException("Formatted product line is only " + length
+                    + " characters long");
+        }
+        return Product.withCents(trimmed(bytes, offset, offset + DESCRIPTION_COLUMN),
+                trimmed(bytes, offset + DESCRIPTION_COLUMN, offset + ID_COLUMN),
+                trimmed(bytes, offset + ID_COLUMN, offset + COST_COLUMN),
+                parseCents(new AsciiSequence(bytes), offset + COST_COLUMN, offset + length));
+    }
+
+    /**
+     * Parse a cost into cents, as Product.toCents(Double.parseDouble(text.trim())) would
+     * @param text source
+     * @param from start of the cost, inclusive
+     * @param to end of the cost, exclusive
+     * @return the cost in whole cents
+     * @throws NumberFormatException if the text is not a number
+     * @throws IllegalArgumentException if the cost is out of range
+     */
+    public static long parseCents(CharSequence text, int from, int to) {
+        while (from < to && text.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && text.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        // plain [-]digits[.d[d]] is read as whole cents without going through a double
+        int at = from;
+        boolean negative = at < to && text.charAt(at) == '-';
+        if (negative) {
+            at++;
+        }
+        long cents = 0;
+        int digits = 0;
+        // 13 digits and 2 decimals stay within Product.MAX_CENTS
+        while (at < to && isDigit(text.charAt(at)) && digits < 13) {
+            cents = cents * 10 + (text.charAt(at++) - '0');
+            digits++;
+        }
+        int decimals = 0;
+        if (digits > 0 && at < to && text.charAt(at) == '.') {
+            at++;
+            while (at < to && isDigit(text.charAt(at)) && decimals < 2) {
+                cents = cents * 10 + (text.charAt(at++) - '0');
+                decimals++;
+            }
+        }
+        if (digits == 0 || at != to) {
+            return Product.toCents(Double.parseDouble(text.subSequence(from, to).toString()));
+        }
+        for (; decimals < 2; decimals++) {
+            cents *= 10;
+        }
+        return negative ? -cents : cents;
+    }
+
+    private static int putPadded(String value, int width, byte[] bytes, int at) {
+        String text = String.valueOf(value);
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                byte[] encoded = text.substring(i).getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(encoded, 0, bytes, at, encoded.length);
+                at += encoded.length;
+                break;
+            }
+            bytes[at++] = (byte) c;
+        }
+        for (int i = length; i < width; i++) {
+            bytes[at++] = ' ';
+        }
+        return at;
+    }
+
+    private static int paddedLength(String value, int width) {
+        String text = String.valueOf(value);
+        int bytes = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                bytes = i + text.substring(i).getBytes(StandardCharsets.UTF_8).length;
+                break;
+            }
+        }
+        return bytes + Math.max(0, width - text.length());
+    }
+
+    /**
+     * Write a cost with two decimals as ASCII, the bytes of formatCents
+     * @param cents cost in whole cents
+     * @param bytes destination
+     * @param at where the cost starts within bytes
+     * @return the position after the last byte written
+     * @throws IndexOutOfBoundsException if the cost does not fit
+     */
+    public static int encodeCents(long cents, byte[] bytes, int at) {
+        if (cents < 0) {
+            bytes[at++] = '-';
+            cents = -cents;
+        }
+        int length = Math.max(3, digitCount(cents));
+        int end = at + length + 1;
+        int position = end;
+        for (int i = 0; i < length; i++) {
+            if (i == 2) {
+                bytes[--position] = '.';
+            }
+            bytes[--position] = (byte) ('0' + cents % 10);
+            cents /= 10;
+        }
+        return end;
+    }
+
+    private static int centsLength(long cents) {
+        return (cents < 0 ? 1 : 0) + Math.max(3, digitCount(Math.abs(cents))) + 1;
+    }
+
+    private static int digitCount(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static String trimmed(CharSequence line, int from, int to) {
+        while (from < to && line.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && line.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        return line.subSequence(from, to).toString();
+    }
+
+    private static String trimmed(byte[] bytes, int from, int to) {
+        while (from < to && bytes[from] <= ' ') {
+            from++;
+        }
+        while (to > from && bytes[to - 1] <= ' ') {
+            to--;
+        }
+        return new String(bytes, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Read-only view of ASCII bytes as characters, so the cost parser works on both
+     */
+    private static class AsciiSequence implements CharSequence {
+        private final byte[] bytes;
+
+        AsciiSequence(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) bytes[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
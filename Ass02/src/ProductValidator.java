@@ -0,0 +1,119 @@
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Field rules for new products, shared by the RandProductMaker form and the bulk
+ * importer, so both reject the same values. Each check returns an error message,
+ * or null if the value is fine.
+ *
+ * The patterns are SafeInput.getRegExString style rules, and a value that does
+ * not fit its fixed-width slot is rejected instead of silently cut. The slots are widths in UTF-8 bytes, so the
+ * lengths are checked on the encoded value rather than counted in characters.
+ */
+public class ProductValidator {
+    public static final Pattern NAME_PATTERN = Pattern.compile(".+");
+    public static final Pattern DESCRIPTION_PATTERN = Pattern.compile(".*");
+    public static final Pattern ID_PATTERN = Pattern.compile("\\S+");
+    public static final Pattern COST_PATTERN = Pattern.compile("\\d+(\\.\\d{1,2})?");
+
+    private ProductValidator() {
+    }
+
+    /**
+     * @param name trimmed product name
+     * @return an error message, or null if the name is valid
+     */
+    public static String checkName(String name) {
+        if (name.isEmpty()) {
+            return "Product name is required";
+        }
+        if (!NAME_PATTERN.matcher(name).matches()) {
+            return "Name must match the pattern " + NAME_PATTERN;
+        }
+        return checkWidth("Name", name, Product.NAME_LENGTH);
+    }
+
+    /**
+     * @param description trimmed description, which may be empty
+     * @return an error message, or null if the description is valid
+     */
+    public static String checkDescription(String description) {
+        if (!DESCRIPTION_PATTERN.matcher(description).matches()) {
+            return "Description must match the pattern " + DESCRIPTION_PATTERN;
+        }
+        return checkWidth("Description", description, Product.DESCRIPTION_LENGTH);
+    }
+
+    /**
+     * @param id trimmed product ID
+     * @return an error message, or null if the ID is valid
+     */
+    public static String checkId(String id) {
+        if (id.isEmpty()) {
+            return "Product ID is required";
+        }
+        if (!ID_PATTERN.matcher(id).matches()) {
+            return "ID must match the pattern " + ID_PATTERN;
+        }
+        return checkWidth("ID", id, Product.ID_LENGTH);
+    }
+
+    /**
+     * @param cost trimmed cost text
+     * @return an error message, or null if the cost is a non-negative number with
+     * at most two decimals that fits the cents field
+     */
+    public static String checkCost(String cost) {
+        try {
+            double value = Double.parseDouble(cost);
+            if (value < 0) {
+                return "Cost cannot be negative";
+            }
+            if (!(value <= Product.MAX_CENTS / 100.0)) {
+                return "Cost is too large";
+            }
+        } catch (NumberFormatException e) {
+            return "Please enter a valid cost";
+        }
+        if (!COST_PATTERN.matcher(cost).matches()) {
+            return "Cost must match the pattern " + COST_PATTERN;
+        }
+        return null;
+    }
+
+    /**
+     * Apply every field check, in form order
+     * @param name trimmed product name
+     * @param description trimmed description
+     * @param id trimmed product ID
+     * @param cost trimmed cost text
+     * @return the first error message, or null if the product can be stored as is
+     */
+    public static String checkAll(String name, String description, String id, String cost) {
+        String problem = checkName(name);
+        if (problem == null) {
+            problem = checkDescription(description);
+        }
+        if (problem == null) {
+            problem = checkId(id);
+        }
+        if (problem == null) {
+            problem = checkCost(cost);
+        }
+        return problem;
+    }
+
+    /**
+     * @param label field name for the message
+     * @param value trimmed value
+     * @param width width of the field's slot in bytes
+     * @return an error message, or null if the value fits its slot as UTF-8
+     */
+    public static String checkWidth(String label, String value, int width) {
+        int bytes = value.getBytes(StandardCharsets.UTF_8).length;
+        if (bytes > width) {
+            return label + " is " + bytes + " bytes in UTF-8, more than the " + width + " that fit";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * LRU cache of search results, bounded by the bytes its hit lists take up. Terms are
+ * normalized (trimmed and lowercased) before lookup and each entry is tagged with
+ * the store generation it was computed against, so anything cached before the file
+ * was written to is treated as a miss and dropped.
+ */
+public class QueryCache {
+    // rough per-entry cost of the map node, key and array headers
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    private static class Entry {
+        final int[] recordNos;
+        final long generation;
+        final long size;
+
+        Entry(String term, int[] recordNos, long generation) {
+            this.recordNos = recordNos;
+            this.generation = generation;
+            this.size = ENTRY_OVERHEAD + term.length() * 2L + recordNos.length * (long) Integer.BYTES;
+        }
+    }
+
+    /**
+     * @param maxBytes upper bound on the memory held by cached hit lists
+     */
+    public QueryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Normalize a search term the same way for lookups and inserts
+     * @param term raw search term
+     * @return trimmed, lowercased term
+     */
+    public static String normalize(String term) {
+        return term.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Look up the hits of a term
+     * @param term search term
+     * @param generation current generation of the store
+     * @return ascending record numbers, or null on a miss
+     */
+    public synchronized int[] get(String term, long generation) {
+        String key = normalize(term);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.generation != generation) {
+            entries.remove(key);
+            bytes -= entry.size;
+            invalidations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.recordNos;
+    }
+
+    /**
+     * Cache the hits of a completed search. Lists larger than the whole cache are
+     * not stored.
+     * @param term search term
+     * @param generation store generation the search ran against
+     * @param recordNos ascending record numbers; must not be modified afterwards
+     */
+    public synchronized void put(String term, long generation, int[] recordNos) {
+        String key = normalize(term);
+        Entry entry = new Entry(key, recordNos, generation);
+        if (entry.size > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += entry.size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Entry victim = eldest.next();
+            eldest.remove();
+            bytes -= victim.size;
+            evictions++;
+        }
+    }
+
+    /**
+     * Drop every entry
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %,d of %,d bytes, %d hits, %d misses, %d evictions, %d invalidations",
+                entries.size(), bytes, maxBytes, hits, misses, evictions, invalidations);
+    }
+}
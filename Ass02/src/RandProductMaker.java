@@ -18,7 +18,7 @@ public class RandProductMaker extends JFrame {
     private JTextField nameField, descriptionField, idField, costField;
     private JTextField recordCountField;
     private JButton addButton, quitButton;
-    private RandomAccessFile file;
+    private ProductService service;
     private int recordCount = 0;
 
     public RandProductMaker() {
@@ -31,6 +31,12 @@ public class RandProductMaker extends JFrame {
 
     private void setupFrame() {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                closeStore();
+            }
+        });
         setMinimumSize(new Dimension(600, 450));
         getContentPane().setBackground(SECONDARY_COLOR);
         setResizable(true);
@@ -49,7 +55,10 @@ public class RandProductMaker extends JFrame {
         quitButton = createStyledButton("Exit");
 
         addButton.addActionListener(new AddButtonListener());
-        quitButton.addActionListener(e -> System.exit(0));
+        quitButton.addActionListener(e -> {
+            closeStore();
+            System.exit(0);
+        });
     }
 
     private JTextField createStyledTextField() {
@@ -157,10 +166,9 @@ public class RandProductMaker extends JFrame {
 
     private void initializeFile() {
         try {
-            file = new RandomAccessFile("products.dat", "rw");
-            recordCount = (int) (file.length() / (35 + 75 + 6 + Double.BYTES));
+            service = ProductService.open("products.dat", true);
+            recordCount = (int) service.getRecordCount();
             recordCountField.setText(String.valueOf(recordCount));
-            file.seek(file.length());
         } catch (IOException e) {
             showError("File Error", "Unable to initialize product file: " + e.getMessage());
             System.exit(1);
@@ -181,12 +189,11 @@ public class RandProductMaker extends JFrame {
                         Double.parseDouble(costField.getText().trim())
                 );
 
-                file.writeUTF(product.getFormattedName());
-                file.writeUTF(product.getFormattedDescription());
-                file.writeUTF(product.getFormattedID());
-                file.writeDouble(product.getCost());
+                // goes through the service's append queue, which shares one write
+                // and sync among adds that arrive together
+                service.add(product);
 
-                recordCount++;
+                recordCount = (int) service.getRecordCount();
                 recordCountField.setText(String.valueOf(recordCount));
                 clearFields();
                 showSuccess("Product Added", "Product has been successfully added to the database.");
@@ -199,30 +206,34 @@ public class RandProductMaker extends JFrame {
         }
     }
 
+    // The same checks, in the same order, as ProductValidator.checkAll applies to
+    // imported rows, stopping at the first field that fails
     private boolean validateInputs() {
-        if (nameField.getText().trim().isEmpty()) {
-            showError("Validation Error", "Product name is required");
-            nameField.requestFocus();
-            return false;
+        return validate(nameField, ProductValidator.checkName(nameField.getText().trim()))
+                && validate(descriptionField, ProductValidator.checkDescription(descriptionField.getText().trim()))
+                && validate(idField, ProductValidator.checkId(idField.getText().trim()))
+                && validate(costField, ProductValidator.checkCost(costField.getText().trim()));
+    }
+
+    private boolean validate(JTextField field, String problem) {
+        if (problem == null) {
+            return true;
         }
-        if (idField.getText().trim().isEmpty()) {
-            showError("Validation Error", "Product ID is required");
-            idField.requestFocus();
-            return false;
+        showError("Validation Error", problem);
+        field.requestFocus();
+        return false;
+    }
+
+    private void closeStore() {
+        if (service == null) {
+            return;
         }
         try {
-            double cost = Double.parseDouble(costField.getText().trim());
-            if (cost < 0) {
-                showError("Validation Error", "Cost cannot be negative");
-                costField.requestFocus();
-                return false;
-            }
-        } catch (NumberFormatException e) {
-            showError("Validation Error", "Please enter a valid cost");
-            costField.requestFocus();
-            return false;
+            service.close();
+            service = null;
+        } catch (IOException e) {
+            showError("File Error", "Unable to save product indexes: " + e.getMessage());
         }
-        return true;
     }
 
     private void showError(String title, String message) {
@@ -2,13 +2,20 @@
 // Programming II
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.*;
+import javax.swing.table.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.text.NumberFormat;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
 
 public class RandProductSearch extends JFrame {
+    // quiet time after the last keystroke before a search starts
+    private static final int DEBOUNCE_MILLIS = Integer.getInteger("search.debounce.ms", 25);
+    private static final String EXPLAIN_PREFIX = "explain ";
     private static final Color PRIMARY_COLOR = new Color(70, 130, 180);
     private static final Color SECONDARY_COLOR = new Color(245, 245, 245);
     private static final Color BUTTON_COLOR = new Color(51, 122, 183);
@@ -18,10 +25,16 @@ public class RandProductSearch extends JFrame {
     private static final Font BOLD_FONT = new Font("Arial", Font.BOLD, 14);
 
     private JTextField searchField;
-    private JTextPane resultPane;
+    private JTable resultTable;
+    private ResultTableModel resultModel;
+    private JProgressBar progressBar;
     private JButton searchButton, quitButton;
-    private RandomAccessFile file;
+    private ProductService service;
     private NumberFormat currencyFormatter;
+    private SearchWorker currentSearch;
+    private Timer debounceTimer;
+    private long lastKeystrokeNanos;
+    private final LatencyStats latencyStats = new LatencyStats(1000);
 
     public RandProductSearch() {
         super("Silas's Product Search System");
@@ -34,6 +47,12 @@ public class RandProductSearch extends JFrame {
 
     private void setupFrame() {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                closeStore();
+            }
+        });
         setMinimumSize(new Dimension(800, 600));
         getContentPane().setBackground(SECONDARY_COLOR);
         setResizable(true);
@@ -42,14 +61,25 @@ public class RandProductSearch extends JFrame {
     private void initializeComponents() {
         searchField = createStyledTextField();
         searchField.addActionListener(e -> searchButton.doClick());
+        searchField.getDocument().addDocumentListener(new SearchFieldListener());
+        debounceTimer = new Timer(DEBOUNCE_MILLIS, e -> searchTermChanged());
+        debounceTimer.setRepeats(false);
 
-        resultPane = createStyledTextPane();
+        resultTable = createStyledTable();
+
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setFont(MAIN_FONT);
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
 
         searchButton = createStyledButton("Search");
         quitButton = createStyledButton("Exit");
 
         searchButton.addActionListener(new SearchButtonListener());
-        quitButton.addActionListener(e -> System.exit(0));
+        quitButton.addActionListener(e -> {
+            closeStore();
+            System.exit(0);
+        });
     }
 
     private JTextField createStyledTextField() {
@@ -62,16 +92,42 @@ public class RandProductSearch extends JFrame {
         return field;
     }
 
-    private JTextPane createStyledTextPane() {
-        JTextPane pane = new JTextPane();
-        pane.setFont(MAIN_FONT);
-        pane.setEditable(false);
-        pane.setBackground(Color.WHITE);
-        pane.setBorder(BorderFactory.createCompoundBorder(
-                new LineBorder(new Color(200, 200, 200), 1),
-                BorderFactory.createEmptyBorder(10, 10, 10, 10)
-        ));
-        return pane;
+    private JTable createStyledTable() {
+        JTable table = new JTable();
+        table.setFont(MAIN_FONT);
+        table.setRowHeight(24);
+        table.setFillsViewportHeight(true);
+        table.setBackground(Color.WHITE);
+        table.setSelectionBackground(RESULT_HIGHLIGHT_COLOR);
+        table.setSelectionForeground(Color.BLACK);
+        table.getTableHeader().setFont(BOLD_FONT);
+        table.getTableHeader().setReorderingAllowed(false);
+        // sorting is done by the model on record numbers; a RowSorter would decode every row
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int column = table.columnAtPoint(e.getPoint());
+                if (column >= 0 && resultModel != null) {
+                    resultModel.sortBy(table.convertColumnIndexToModel(column));
+                }
+            }
+        });
+        return table;
+    }
+
+    private void configureResultColumns() {
+        TableColumnModel columns = resultTable.getColumnModel();
+        columns.getColumn(ResultTableModel.ID_COLUMN).setPreferredWidth(80);
+        columns.getColumn(ResultTableModel.NAME_COLUMN).setPreferredWidth(200);
+        columns.getColumn(ResultTableModel.DESCRIPTION_COLUMN).setPreferredWidth(360);
+        columns.getColumn(ResultTableModel.PRICE_COLUMN).setPreferredWidth(90);
+        columns.getColumn(ResultTableModel.PRICE_COLUMN).setCellRenderer(new DefaultTableCellRenderer() {
+            @Override
+            protected void setValue(Object value) {
+                setHorizontalAlignment(SwingConstants.RIGHT);
+                setText(value == null ? "" : currencyFormatter.format(value));
+            }
+        });
     }
 
     private JButton createStyledButton(String text) {
@@ -147,9 +203,10 @@ public class RandProductSearch extends JFrame {
                 BorderFactory.createEmptyBorder(10, 10, 10, 10)
         ));
 
-        JScrollPane scrollPane = new JScrollPane(resultPane);
+        JScrollPane scrollPane = new JScrollPane(resultTable);
         scrollPane.setBorder(BorderFactory.createEmptyBorder());
         resultsPanel.add(scrollPane, BorderLayout.CENTER);
+        resultsPanel.add(progressBar, BorderLayout.SOUTH);
 
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 10));
         buttonPanel.setBackground(SECONDARY_COLOR);
@@ -164,7 +221,10 @@ public class RandProductSearch extends JFrame {
 
     private void initializeFile() {
         try {
-            file = new RandomAccessFile("products.dat", "r");
+            service = ProductService.open("products.dat", false);
+            resultModel = new ResultTableModel(service.getStore());
+            resultTable.setModel(resultModel);
+            configureResultColumns();
         } catch (IOException e) {
             showError("File Error", "Unable to open product database: " + e.getMessage());
             System.exit(1);
@@ -173,54 +233,202 @@ public class RandProductSearch extends JFrame {
 
     private class SearchButtonListener implements ActionListener {
         public void actionPerformed(ActionEvent e) {
-            String searchTerm = searchField.getText().toLowerCase().trim();
+            String searchText = searchField.getText().trim();
+            // "explain <query>" runs the query and also shows the plan it used
+            boolean explain = searchText.toLowerCase().startsWith(EXPLAIN_PREFIX);
+            if (explain) {
+                searchText = searchText.substring(EXPLAIN_PREFIX.length()).trim();
+            }
 
-            if (searchTerm.isEmpty()) {
+            if (searchText.isEmpty()) {
                 showError("Search Error", "Please enter a search term");
                 return;
             }
 
-            try {
-                boolean found = false;
-                file.seek(0);
-
-                StringBuilder results = new StringBuilder();
-                results.append(String.format("Search results for \"%s\":\n\n", searchTerm));
-
-                while (file.getFilePointer() < file.length()) {
-                    String name = file.readUTF().trim();
-                    String description = file.readUTF().trim();
-                    String id = file.readUTF().trim();
-                    double cost = file.readDouble();
-
-                    if (name.toLowerCase().contains(searchTerm) ||
-                            description.toLowerCase().contains(searchTerm) ||
-                            id.toLowerCase().contains(searchTerm)) {
-
-                        results.append("Product ID: ").append(id).append("\n");
-                        results.append("Name: ").append(name).append("\n");
-                        results.append("Description: ").append(description).append("\n");
-                        results.append("Price: ").append(currencyFormatter.format(cost)).append("\n");
-                        results.append("─".repeat(50)).append("\n\n");
-
-                        found = true;
-                    }
-                }
+            debounceTimer.stop();
+            startSearch(searchText, System.nanoTime(), explain);
+        }
+    }
+
+    // Every edit cancels the search in flight; a new one starts once typing pauses
+    private class SearchFieldListener implements DocumentListener {
+        public void insertUpdate(DocumentEvent e) {
+            keystroke();
+        }
 
-                if (!found) {
-                    results = new StringBuilder("No products found matching \"")
-                            .append(searchTerm).append("\"");
+        public void removeUpdate(DocumentEvent e) {
+            keystroke();
+        }
+
+        public void changedUpdate(DocumentEvent e) {
+            keystroke();
+        }
+    }
+
+    private void keystroke() {
+        lastKeystrokeNanos = System.nanoTime();
+        cancelSearch();
+        debounceTimer.restart();
+    }
+
+    private void searchTermChanged() {
+        String searchText = searchField.getText().trim();
+        if (searchText.toLowerCase().startsWith(EXPLAIN_PREFIX)) {
+            searchText = searchText.substring(EXPLAIN_PREFIX.length()).trim();
+        }
+        if (searchText.isEmpty()) {
+            cancelSearch();
+            resultModel.clear();
+            progressBar.setValue(0);
+            progressBar.setString("");
+            return;
+        }
+        startSearch(searchText, lastKeystrokeNanos, false);
+    }
+
+    // Plain text is a substring search; text using the query syntax is parsed and planned
+    private void startSearch(String searchText, long startNanos, boolean explain) {
+        cancelSearch();
+        resultModel.clear();
+        progressBar.setValue(0);
+
+        String problem = ProductService.checkQuery(searchText, explain);
+        if (problem != null) {
+            // usually a query that is still being typed
+            progressBar.setString("Invalid query: " + problem);
+            return;
+        }
+        progressBar.setString(String.format("Searching for \"%s\"...", searchText));
+
+        currentSearch = new SearchWorker(searchText, explain, startNanos);
+        currentSearch.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName()) && e.getSource() == currentSearch) {
+                showProgress(currentSearch);
+            }
+        });
+        currentSearch.execute();
+    }
+
+    private void cancelSearch() {
+        if (currentSearch != null) {
+            // not cancel(true): interrupting a thread inside a FileChannel call closes the channel
+            currentSearch.cancel(false);
+            currentSearch = null;
+        }
+    }
+
+    private void showProgress(SearchWorker search) {
+        progressBar.setValue(search.getProgress());
+        progressBar.setString(String.format("Scanned %,d of %,d records, %,d found",
+                search.scanned, search.total, search.found));
+    }
+
+    /**
+     * @return keystroke-to-result latency of recent searches
+     */
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * @return the result cache, for its hit, miss and eviction counters
+     */
+    public QueryCache getQueryCache() {
+        return service.getQueryCache();
+    }
+
+    /**
+     * Runs a search off the Event Dispatch Thread, publishing the record numbers
+     * of each chunk's hits as it is checked. Stops after the current chunk once cancelled.
+     */
+    private class SearchWorker extends SwingWorker<Long, long[]> {
+        private final String searchText;
+        private final boolean explain;
+        private final long startNanos;
+        private ProductService.SearchResult result;
+        private volatile long scanned;
+        private volatile long total;
+        private volatile long found;
+
+        SearchWorker(String searchText, boolean explain, long startNanos) {
+            this.searchText = searchText;
+            this.explain = explain;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        protected Long doInBackground() throws IOException {
+            result = service.search(searchText, explain, (chunk, scannedSoFar, totalRecords) -> {
+                if (isCancelled()) {
+                    return false;
                 }
+                publish(chunk);
+                found += chunk.length;
+                scanned = scannedSoFar;
+                total = totalRecords;
+                setProgress(totalRecords == 0 ? 100 : (int) (scannedSoFar * 100 / totalRecords));
+                return true;
+            });
+            return found;
+        }
 
-                resultPane.setText(results.toString());
-                resultPane.setCaretPosition(0);
+        @Override
+        protected void process(List<long[]> chunks) {
+            if (isCancelled()) {
+                return;
+            }
+            for (long[] hits : chunks) {
+                resultModel.addHits(hits);
+            }
+        }
 
-            } catch (IOException ex) {
-                showError("Search Error", "Error reading product database: " + ex.getMessage());
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                long hitCount = get();
+                long latency = System.nanoTime() - startNanos;
+                latencyStats.record(latency);
+                progressBar.setValue(100);
+                progressBar.setString(String.format("%s %,d of %,d records, %,d found in %.1f ms (p99 %.1f ms)",
+                        result.isFromCache() ? "Cached result for" : "Scanned", scanned, total, hitCount,
+                        latency / 1e6, latencyStats.percentileMillis(99)));
+                if (hitCount == 0) {
+                    progressBar.setString("No products found matching \"" + result.getTerm() + "\"");
+                }
+                if (explain && result.getPlan() != null) {
+                    showPlan(result.getPlan());
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                showError("Search Error", "Error reading product database: " + cause.getMessage());
             }
         }
     }
 
+    private void closeStore() {
+        if (service == null) {
+            return;
+        }
+        cancelSearch();
+        try {
+            service.close();
+            service = null;
+        } catch (IOException e) {
+            showError("File Error", "Unable to save product indexes: " + e.getMessage());
+        }
+    }
+
+    private void showPlan(String plan) {
+        JTextArea text = new JTextArea(plan);
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 13));
+        text.setEditable(false);
+        JOptionPane.showMessageDialog(this, new JScrollPane(text), "Query Plan",
+                JOptionPane.INFORMATION_MESSAGE);
+    }
+
     private void showError(String title, String message) {
         JOptionPane.showMessageDialog(this, message, title,
                 JOptionPane.ERROR_MESSAGE);
@@ -0,0 +1,120 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Case-insensitive substring matcher that works on the encoded bytes of a record
+ * instead of decoded Strings. The record's text fields are copied into a scratch
+ * buffer supplied by the caller, ASCII letters are folded to lower case in place,
+ * and each field is searched with Boyer-Moore-Horspool using a skip table built
+ * once per term. Checking a record allocates nothing.
+ *
+ * Only ASCII terms are supported, since folding is done byte by byte; forTerm
+ * returns null for anything else so callers can fall back to String matching.
+ */
+public class RecordMatcher implements ParallelScanner.SlotMatcher {
+    private static final int[][] FIELDS = {
+            {ProductRecord.NAME_OFFSET, Product.NAME_LENGTH},
+            {ProductRecord.DESCRIPTION_OFFSET, Product.DESCRIPTION_LENGTH},
+            {ProductRecord.ID_OFFSET, Product.ID_LENGTH}
+    };
+    private static final int TEXT_LENGTH = ProductRecord.COST_OFFSET;
+
+    private final byte[] pattern;
+    private final int[] skip = new int[256];
+
+    private RecordMatcher(byte[] pattern) {
+        this.pattern = pattern;
+        Arrays.fill(skip, pattern.length);
+        for (int i = 0; i < pattern.length - 1; i++) {
+            skip[pattern[i] & 0xFF] = pattern.length - 1 - i;
+        }
+    }
+
+    /**
+     * Build a matcher for a search term
+     * @param term search term
+     * @return a matcher, or null if the term is empty or not plain ASCII
+     */
+    public static RecordMatcher forTerm(String term) {
+        if (term.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < term.length(); i++) {
+            if (term.charAt(i) >= 0x80) {
+                return null;
+            }
+        }
+        byte[] pattern = term.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = fold(pattern[i]);
+        }
+        return new RecordMatcher(pattern);
+    }
+
+    /**
+     * Allocate a scratch buffer for one scanning thread
+     * @return a buffer large enough for the text fields of a record
+     */
+    public static byte[] newScratch() {
+        return new byte[TEXT_LENGTH];
+    }
+
+    /**
+     * Check whether the name, description or ID of a record contains the term
+     * @param buffer buffer holding the record
+     * @param offset start of the record within the buffer
+     * @param scratch buffer from newScratch, reused between calls by the same thread
+     * @return true if one of the fields contains the term, ignoring ASCII case
+     */
+    @Override
+    public boolean matches(ByteBuffer buffer, int offset, byte[] scratch) {
+        buffer.get(offset, scratch, 0, TEXT_LENGTH);
+        for (int i = 0; i < TEXT_LENGTH; i++) {
+            scratch[i] = fold(scratch[i]);
+        }
+        for (int[] field : FIELDS) {
+            if (indexOf(scratch, field[0], field[0] + field[1]) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a single text field contains the term
+     * @param buffer buffer holding the field
+     * @param offset start of the field within the buffer
+     * @param width width of the field in bytes
+     * @param scratch buffer from newScratch, reused between calls by the same thread
+     * @return true if the field contains the term, ignoring ASCII case
+     */
+    public boolean matchesField(ByteBuffer buffer, int offset, int width, byte[] scratch) {
+        buffer.get(offset, scratch, 0, width);
+        for (int i = 0; i < width; i++) {
+            scratch[i] = fold(scratch[i]);
+        }
+        return indexOf(scratch, 0, width) >= 0;
+    }
+
+    // Boyer-Moore-Horspool over text[from, to)
+    private int indexOf(byte[] text, int from, int to) {
+        int last = pattern.length - 1;
+        int position = from;
+        while (position + last < to) {
+            int i = last;
+            while (text[position + i] == pattern[i]) {
+                if (i == 0) {
+                    return position;
+                }
+                i--;
+            }
+            position += skip[text[position + last] & 0xFF];
+        }
+        return -1;
+    }
+
+    private static byte fold(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
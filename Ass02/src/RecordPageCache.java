@@ -0,0 +1,241 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded records, held in pages of PAGE_RECORDS records. Each page is
+ * one off-heap buffer stored column-wise: the trimmed text of every name,
+ * description and ID back to back, then an int per field for where it ends, then
+ * a long per record for its cost in cents. Reading a cached record copies its
+ * characters out instead of decoding UTF-8 from the mapped file again.
+ *
+ * The cache sits under the decode path only: read, forEach and forEachInRange,
+ * which materialize table rows and ID lookups and feed the Product predicate
+ * scans used for non-ASCII terms. Byte-level scans (RecordMatcher, ProductQuery)
+ * never decode and read the mapping directly, so the cache does nothing for them.
+ *
+ * The number of pages is fixed by a memory budget and pages are evicted with the
+ * clock algorithm. Readers pin the page they are using, so several scan threads
+ * can share the cache without holding its lock while they read. All pages are
+ * dropped when the store generation changes.
+ */
+public class RecordPageCache {
+    public static final int PAGE_RECORDS = 1024;
+    // a field never has more UTF-16 chars than it has UTF-8 bytes
+    private static final int CHARS_PER_RECORD = Product.NAME_LENGTH + Product.DESCRIPTION_LENGTH + Product.ID_LENGTH;
+    private static final int ENDS_POSITION = PAGE_RECORDS * CHARS_PER_RECORD * Character.BYTES;
+    private static final int COSTS_POSITION = ENDS_POSITION + PAGE_RECORDS * 3 * Integer.BYTES;
+    private static final int FRAME_BYTES = COSTS_POSITION + PAGE_RECORDS * Long.BYTES;
+
+    private final ProductStore store;
+    private final Frame[] frames;
+    private final Map<Long, Frame> resident = new HashMap<>();
+    private int allocated;
+    private int hand;
+    private long generation = -1;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * One page worth of decoded records
+     */
+    private static class Frame {
+        final ByteBuffer data = ByteBuffer.allocateDirect(FRAME_BYTES);
+        final CharBuffer text = data.slice(0, ENDS_POSITION).asCharBuffer();
+        final boolean pooled;
+        long pageNo = -1;
+        int records;
+        int pins;
+        boolean referenced;
+
+        Frame(boolean pooled) {
+            this.pooled = pooled;
+        }
+
+        Product product(int index, char[] scratch) {
+            int start = index == 0 ? 0 : fieldEnd(index * 3 - 1);
+            int nameEnd = fieldEnd(index * 3);
+            int descriptionEnd = fieldEnd(index * 3 + 1);
+            String name = field(start, nameEnd, scratch);
+            String description = field(nameEnd, descriptionEnd, scratch);
+            String id = field(descriptionEnd, fieldEnd(index * 3 + 2), scratch);
+            return Product.withCents(name, description, id, data.getLong(COSTS_POSITION + index * Long.BYTES));
+        }
+
+        int fieldEnd(int field) {
+            return data.getInt(ENDS_POSITION + field * Integer.BYTES);
+        }
+
+        void setFieldEnd(int field, int end) {
+            data.putInt(ENDS_POSITION + field * Integer.BYTES, end);
+        }
+
+        private String field(int start, int end, char[] scratch) {
+            text.get(start, scratch, 0, end - start);
+            return new String(scratch, 0, end - start);
+        }
+    }
+
+    /**
+     * @param store store whose records are cached
+     * @param budgetBytes memory the cached pages may use, at least one page is always kept
+     */
+    public RecordPageCache(ProductStore store, long budgetBytes) {
+        this.store = store;
+        this.frames = new Frame[(int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / FRAME_BYTES))];
+    }
+
+    /**
+     * Decode one record through the cache
+     * @param recordNo zero based record number
+     * @return the product stored in that record
+     */
+    public Product read(long recordNo) {
+        Frame frame = pin(recordNo / PAGE_RECORDS, recordNo);
+        try {
+            return frame.product((int) (recordNo % PAGE_RECORDS), new char[Product.DESCRIPTION_LENGTH]);
+        } finally {
+            unpin(frame);
+        }
+    }
+
+    /**
+     * Visit a contiguous range of records through the cache, in file order
+     * @param from first record number, inclusive
+     * @param to last record number, exclusive
+     * @param visitor called once per record
+     */
+    public void forEachInRange(long from, long to, ProductStore.ProductVisitor visitor) {
+        to = Math.min(to, store.getRecordCount());
+        char[] scratch = new char[Product.DESCRIPTION_LENGTH];
+        long recordNo = from;
+        while (recordNo < to) {
+            long pageNo = recordNo / PAGE_RECORDS;
+            long pageEnd = Math.min(to, (pageNo + 1) * PAGE_RECORDS);
+            Frame frame = pin(pageNo, pageEnd - 1);
+            try {
+                for (; recordNo < pageEnd; recordNo++) {
+                    visitor.visit(recordNo, frame.product((int) (recordNo % PAGE_RECORDS), scratch));
+                }
+            } finally {
+                unpin(frame);
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d of %d pages, %d hits, %d misses, %d evictions",
+                resident.size(), frames.length, hits, misses, evictions);
+    }
+
+    // Returns a pinned frame holding the page, loading it if it is not resident or
+    // was loaded before the record was appended
+    private Frame pin(long pageNo, long lastRecordNo) {
+        Frame frame;
+        synchronized (this) {
+            if (store.getGeneration() != generation) {
+                resident.clear();
+                generation = store.getGeneration();
+            }
+            frame = resident.get(pageNo);
+            if (frame != null && lastRecordNo < pageNo * PAGE_RECORDS + frame.records) {
+                frame.pins++;
+                frame.referenced = true;
+                hits++;
+                return frame;
+            }
+            misses++;
+            frame = victim();
+        }
+
+        load(frame, pageNo);
+
+        synchronized (this) {
+            // another reader may have loaded the same page meanwhile; theirs stays resident
+            Frame current = resident.get(pageNo);
+            if (frame.pooled && (current == null || current.records < frame.records)) {
+                resident.put(pageNo, frame);
+            }
+            frame.pageNo = pageNo;
+            frame.referenced = true;
+        }
+        return frame;
+    }
+
+    private synchronized void unpin(Frame frame) {
+        frame.pins--;
+    }
+
+    // Clock sweep over the unpinned frames. When every frame is pinned the caller
+    // gets a private frame that is never cached.
+    private Frame victim() {
+        if (allocated < frames.length) {
+            Frame frame = new Frame(true);
+            frames[allocated++] = frame;
+            frame.pins = 1;
+            return frame;
+        }
+        for (int step = 0; step < frames.length * 2; step++) {
+            Frame frame = frames[hand];
+            hand = (hand + 1) % frames.length;
+            if (frame.pins > 0) {
+                continue;
+            }
+            if (frame.referenced) {
+                frame.referenced = false;
+                continue;
+            }
+            if (frame.pageNo >= 0 && resident.get(frame.pageNo) == frame) {
+                resident.remove(frame.pageNo);
+                evictions++;
+            }
+            frame.pageNo = -1;
+            frame.pins = 1;
+            return frame;
+        }
+        Frame frame = new Frame(false);
+        frame.pins = 1;
+        return frame;
+    }
+
+    private void load(Frame frame, long pageNo) {
+        long first = pageNo * PAGE_RECORDS;
+        long last = Math.min(store.getRecordCount(), first + PAGE_RECORDS);
+        int[] length = {0};
+        byte[] bytes = new byte[Product.DESCRIPTION_LENGTH];
+        store.forEachSlotInRange(first, last, (recordNo, buffer, offset) -> {
+            int index = (int) (recordNo - first);
+            Product product = ProductRecord.decode(buffer, offset, bytes);
+            length[0] = put(frame, length[0], product.getName());
+            frame.setFieldEnd(index * 3, length[0]);
+            length[0] = put(frame, length[0], product.getDescription());
+            frame.setFieldEnd(index * 3 + 1, length[0]);
+            length[0] = put(frame, length[0], product.getID());
+            frame.setFieldEnd(index * 3 + 2, length[0]);
+            frame.data.putLong(COSTS_POSITION + index * Long.BYTES, product.getCostCents());
+        });
+        frame.records = (int) (last - first);
+    }
+
+    private static int put(Frame frame, int position, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            frame.text.put(position + i, value.charAt(i));
+        }
+        return position + value.length();
+    }
+}
@@ -0,0 +1,201 @@
+import javax.swing.table.AbstractTableModel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Table model for search results that only holds record numbers. A Product is
+ * decoded from the store when a row is painted, and a small cache keeps the rows
+ * currently on screen, so memory and render time stay flat however many products
+ * match. Sorting works on the record number array and reads the sort key straight
+ * from the mapped records.
+ */
+public class ResultTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    public static final int ID_COLUMN = 0;
+    public static final int NAME_COLUMN = 1;
+    public static final int DESCRIPTION_COLUMN = 2;
+    public static final int PRICE_COLUMN = 3;
+
+    private static final String[] COLUMN_NAMES = {"Product ID", "Name", "Description", "Price"};
+    private static final int CACHED_ROWS = 256;
+
+    private final ProductStore store;
+    private long[] recordNos = new long[64];
+    private int size;
+    private int sortColumn = -1;
+    private boolean ascending = true;
+
+    private final Map<Integer, Product> decoded = new LinkedHashMap<>(CACHED_ROWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Product> eldest) {
+            return size() > CACHED_ROWS;
+        }
+    };
+
+    /**
+     * Compares two records by one column
+     */
+    private interface RecordComparator {
+        int compare(long a, long b);
+    }
+
+    public ResultTableModel(ProductStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Remove all rows
+     */
+    public void clear() {
+        size = 0;
+        recordNos = new long[64];
+        decoded.clear();
+        fireTableDataChanged();
+    }
+
+    /**
+     * Add the hits of one scan chunk, keeping the current sort order if there is one
+     * @param hits ascending record numbers
+     */
+    public void addHits(long[] hits) {
+        if (hits.length == 0) {
+            return;
+        }
+        if (size + hits.length > recordNos.length) {
+            recordNos = Arrays.copyOf(recordNos, Math.max(recordNos.length * 2, size + hits.length));
+        }
+        System.arraycopy(hits, 0, recordNos, size, hits.length);
+        int first = size;
+        size += hits.length;
+        if (sortColumn < 0) {
+            fireTableRowsInserted(first, size - 1);
+            return;
+        }
+        // sort the new run on its own, then merge it into the already sorted rows
+        long[] buffer = new long[size];
+        RecordComparator comparator = comparator();
+        mergeSort(recordNos, buffer, first, size, comparator);
+        merge(recordNos, buffer, 0, first, size, comparator);
+        decoded.clear();
+        fireTableDataChanged();
+    }
+
+    /**
+     * Sort by a column, flipping the direction if it is already the sort column
+     * @param column one of the column constants
+     */
+    public void sortBy(int column) {
+        ascending = column != sortColumn || !ascending;
+        sortColumn = column;
+        mergeSort(recordNos, new long[size], 0, size, comparator());
+        decoded.clear();
+        fireTableDataChanged();
+    }
+
+    /**
+     * @param row table row
+     * @return the record number shown in that row
+     */
+    public long getRecordNo(int row) {
+        return recordNos[row];
+    }
+
+    /**
+     * @param row table row
+     * @return the product shown in that row, decoded on demand
+     */
+    public Product getProduct(int row) {
+        return decoded.computeIfAbsent(row, r -> store.read(recordNos[r]));
+    }
+
+    @Override
+    public int getRowCount() {
+        return size;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == PRICE_COLUMN ? Double.class : String.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Product product = getProduct(row);
+        switch (column) {
+            case ID_COLUMN:
+                return product.getID();
+            case NAME_COLUMN:
+                return product.getName();
+            case DESCRIPTION_COLUMN:
+                return product.getDescription();
+            default:
+                return product.getCost();
+        }
+    }
+
+    private RecordComparator comparator() {
+        RecordComparator byColumn;
+        switch (sortColumn) {
+            case ID_COLUMN:
+                byColumn = (a, b) -> store.compareField(a, b, ProductRecord.ID_OFFSET, Product.ID_LENGTH);
+                break;
+            case NAME_COLUMN:
+                byColumn = (a, b) -> store.compareField(a, b, ProductRecord.NAME_OFFSET, Product.NAME_LENGTH);
+                break;
+            case DESCRIPTION_COLUMN:
+                byColumn = (a, b) -> store.compareField(a, b,
+                        ProductRecord.DESCRIPTION_OFFSET, Product.DESCRIPTION_LENGTH);
+                break;
+            default:
+                byColumn = (a, b) -> Long.compare(store.readCostCents(a), store.readCostCents(b));
+        }
+        // ties fall back to file order so the sort is stable in both directions
+        return (a, b) -> {
+            int result = byColumn.compare(a, b);
+            if (!ascending) {
+                result = -result;
+            }
+            return result != 0 ? result : Long.compare(a, b);
+        };
+    }
+
+    // Top-down merge sort of values[from, to) using buffer as scratch space
+    private static void mergeSort(long[] values, long[] buffer, int from, int to, RecordComparator comparator) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(values, buffer, from, middle, comparator);
+        mergeSort(values, buffer, middle, to, comparator);
+        merge(values, buffer, from, middle, to, comparator);
+    }
+
+    private static void merge(long[] values, long[] buffer, int from, int middle, int to,
+                              RecordComparator comparator) {
+        if (from == middle || middle == to || comparator.compare(values[middle - 1], values[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(values, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && comparator.compare(buffer[left], buffer[right]) <= 0)) {
+                values[i] = buffer[left++];
+            } else {
+                values[i] = buffer[right++];
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Inverted trigram index (products.tri) over the lowercased name, description and
+ * ID of every record. Each trigram maps to the ascending list of records containing
+ * it, stored as varint encoded gaps. A substring query intersects the lists of the
+ * term's trigrams to get candidate records; callers still verify each candidate.
+ *
+ * Trigrams never span two fields, so every record that contains the term in one of
+ * its fields is always among the candidates. An update in place adds the new text's
+ * trigrams and leaves the old ones, which only costs a few extra candidates.
+ *
+ * Each store holds the index in memory. Only writable stores save it: on close,
+ * and on sync when it holds rewrites the file does not have yet. A store that
+ * finds records were rewritten by another process reloads that process's saved
+ * index before falling back to a rebuild, and a store whose file was replaced
+ * by compaction discards its copy rather than saving old record numbers.
+ */
+public class TrigramIndex implements Closeable {
+    private static final int MAGIC = 0x50545249; // "PTRI"
+    private static final int VERSION = 2;
+
+    private final Path path;
+    private final boolean writable;
+    private final Map<Long, Posting> postings = new HashMap<>();
+    private long coveredRecords;
+    private long coveredRewrites;
+    private boolean dirty;
+    // rewrites covered by the last file this index loaded or saved
+    private long savedRewrites = -1;
+
+    /**
+     * Records containing one trigram, as varint gaps between ascending record numbers
+     */
+    private static class Posting {
+        byte[] data = new byte[8];
+        int length;
+        int count;
+        int last = -1;
+
+        void add(int recordNo) {
+            if (recordNo == last) {
+                return;
+            }
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int gap = recordNo - last;
+            while ((gap & ~0x7F) != 0) {
+                data[length++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+            last = recordNo;
+            count++;
+        }
+
+        // Adds a record anywhere in the list by re-encoding it; only updates need this
+        void insert(int recordNo) {
+            if (recordNo > last) {
+                add(recordNo);
+                return;
+            }
+            int[] records = decode();
+            int position = Arrays.binarySearch(records, recordNo);
+            if (position >= 0) {
+                return;
+            }
+            position = -position - 1;
+            length = 0;
+            count = 0;
+            last = -1;
+            for (int i = 0; i < position; i++) {
+                add(records[i]);
+            }
+            add(recordNo);
+            for (int i = position; i < records.length; i++) {
+                add(records[i]);
+            }
+        }
+
+        int[] decode() {
+            int[] records = new int[count];
+            int position = 0;
+            int value = -1;
+            for (int i = 0; i < count; i++) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += gap;
+                records[i] = value;
+            }
+            return records;
+        }
+
+        // Keeps the entries of sorted that also appear in this list
+        int retain(int[] sorted, int size) {
+            int kept = 0;
+            int position = 0;
+            int value = -1;
+            int decoded = 0;
+            for (int i = 0; i < size; i++) {
+                int wanted = sorted[i];
+                while (value < wanted && decoded < count) {
+                    int gap = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = data[position++];
+                        gap |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    value += gap;
+                    decoded++;
+                }
+                if (value == wanted) {
+                    sorted[kept++] = wanted;
+                } else if (value < wanted) {
+                    break;
+                }
+            }
+            return kept;
+        }
+    }
+
+    private TrigramIndex(Path path, boolean writable) {
+        this.path = path;
+        this.writable = writable;
+    }
+
+    /**
+     * Load the index for a store, rebuilding it if it is missing or unreadable
+     * @param path location of the index file
+     * @param store store the index describes
+     * @param writable true if the index may be saved back to the file
+     * @return an index covering every record currently in the store
+     */
+    public static TrigramIndex open(String path, ProductStore store, boolean writable) {
+        TrigramIndex index = new TrigramIndex(Paths.get(path), writable);
+        // covering no rewrites makes catchUp load the file, or build the index if it cannot
+        index.clear(-1);
+        index.catchUp(store);
+        return index;
+    }
+
+    /**
+     * Add records appended to the store since the index was last updated. If
+     * records were rewritten by someone else in the meantime, the file they saved
+     * is loaded if it covers their rewrites, and otherwise the index is rebuilt.
+     * @param store store the index describes
+     */
+    public synchronized void catchUp(ProductStore store) {
+        long records = store.getRecordCount();
+        if (coveredRecords > records || coveredRewrites != store.getRewriteCount()) {
+            boolean reloaded = load() && coveredRecords <= records && coveredRewrites == store.getRewriteCount();
+            if (!reloaded) {
+                clear(store.getRewriteCount());
+            }
+        }
+        for (long recordNo = coveredRecords; recordNo < records; recordNo++) {
+            add(recordNo, store.read(recordNo));
+        }
+    }
+
+    /**
+     * Forget every entry because the records were renumbered, e.g. by compaction.
+     * The index is rebuilt by the next catchUp and the old contents are never saved.
+     */
+    public synchronized void discard() {
+        clear(-1);
+        dirty = false;
+    }
+
+    /**
+     * Index a newly appended record. Records must be added in ascending order.
+     * @param recordNo record number of the product
+     * @param product product stored in that record
+     */
+    public synchronized void add(long recordNo, Product product) {
+        if (recordNo < coveredRecords) {
+            return;
+        }
+        if (recordNo > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Trigram index is limited to " + Integer.MAX_VALUE + " records");
+        }
+        addField((int) recordNo, product.getName());
+        addField((int) recordNo, product.getDescription());
+        addField((int) recordNo, product.getID());
+        coveredRecords = recordNo + 1;
+        dirty = true;
+    }
+
+    /**
+     * Follow an update or delete made in place. The index is left alone, and so
+     * rebuilt by the next catchUp, unless it was current up to the previous rewrite.
+     * @param recordNo record that was rewritten
+     * @param product its new contents, or null for a delete
+     * @param rewriteCount the store's rewrite count after the change
+     */
+    public synchronized void rewrite(long recordNo, Product product, long rewriteCount) {
+        if (coveredRewrites != rewriteCount - 1 || recordNo >= coveredRecords) {
+            return;
+        }
+        if (product != null) {
+            insertField((int) recordNo, product.getName());
+            insertField((int) recordNo, product.getDescription());
+            insertField((int) recordNo, product.getID());
+        }
+        coveredRewrites = rewriteCount;
+        dirty = true;
+    }
+
+    /**
+     * Find the records that may contain a term in their name, description or ID
+     * @param term search term, already lowercased
+     * @return ascending candidate record numbers, or null if the term is shorter
+     * than a trigram and the index cannot narrow the search
+     */
+    public synchronized int[] candidates(String term) {
+        if (term.length() < 3) {
+            return null;
+        }
+        Posting[] lists = new Posting[term.length() - 2];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = postings.get(trigram(term, i));
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        // intersect starting from the rarest trigram to keep the working set small
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.count, b.count));
+        int[] result = lists[0].decode();
+        int size = result.length;
+        for (int i = 1; i < lists.length && size > 0; i++) {
+            if (lists[i] != lists[i - 1]) {
+                size = lists[i].retain(result, size);
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    public synchronized long getCoveredRecords() {
+        return coveredRecords;
+    }
+
+    public synchronized long getCoveredRewrites() {
+        return coveredRewrites;
+    }
+
+    /**
+     * Write the index to disk if it has rewrites the file does not cover yet, so
+     * other processes can load it instead of rebuilding theirs
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void flushRewrites() throws IOException {
+        if (coveredRewrites != savedRewrites) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the index to disk if it changed since it was loaded. Does nothing for
+     * an index opened read-only.
+     * @throws IOException if the index cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if (!dirty || !writable) {
+            return;
+        }
+        // a temporary file of our own, as other processes may be saving theirs
+        Path directory = path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(coveredRecords);
+            out.writeLong(coveredRewrites);
+            out.writeInt(postings.size());
+            for (Map.Entry<Long, Posting> entry : postings.entrySet()) {
+                Posting posting = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeInt(posting.count);
+                out.writeInt(posting.last);
+                out.writeInt(posting.length);
+                out.write(posting.data, 0, posting.length);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+        savedRewrites = coveredRewrites;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private boolean load() {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        postings.clear();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            coveredRecords = in.readLong();
+            coveredRewrites = in.readLong();
+            int trigrams = in.readInt();
+            for (int i = 0; i < trigrams; i++) {
+                long key = in.readLong();
+                Posting posting = new Posting();
+                posting.count = in.readInt();
+                posting.last = in.readInt();
+                posting.length = in.readInt();
+                posting.data = new byte[Math.max(8, posting.length)];
+                in.readFully(posting.data, 0, posting.length);
+                postings.put(key, posting);
+            }
+            dirty = false;
+            savedRewrites = coveredRewrites;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void clear(long rewrites) {
+        postings.clear();
+        coveredRecords = 0;
+        coveredRewrites = rewrites;
+        dirty = true;
+    }
+
+    private void addField(int recordNo, String field) {
+        String lower = field.toLowerCase(Locale.ROOT);
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            postings.computeIfAbsent(trigram(lower, i), k -> new Posting()).add(recordNo);
+        }
+    }
+
+    private void insertField(int recordNo, String field) {
+        String lower = field.toLowerCase(Locale.ROOT);
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            postings.computeIfAbsent(trigram(lower, i), k -> new Posting()).insert(recordNo);
+        }
+    }
+
+    private static long trigram(String text, int start) {
+        return ((long) text.charAt(start) << 32)
+                | ((long) text.charAt(start + 1) << 16)
+                | text.charAt(start + 2);
+    }
+}